@@ -0,0 +1,93 @@
+package ru.makkarpov.mtoxy.benchmark;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import org.openjdk.jmh.annotations.*;
+import ru.makkarpov.mtoxy.util.AESCTR;
+import ru.makkarpov.mtoxy.util.CryptoEngine;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AESCTRBenchmark {
+    /**
+     * Size of a single composite buffer component, roughly as read from a socket.
+     */
+    private static final int COMPONENT_SIZE = 1024;
+
+    @Param({"64", "1024", "16384", "65536"})
+    public int size;
+
+    @Param({"TABLE", "JCA"})
+    public CryptoEngine engine;
+
+    private AESCTR cipher, secondCipher;
+    private ByteBuf heapBuffer, directBuffer;
+    private CompositeByteBuf compositeBuffer;
+
+    @Setup
+    public void setup() {
+        byte[] key = new byte[32];
+        byte[] iv = new byte[16];
+        ThreadLocalRandom.current().nextBytes(key);
+        ThreadLocalRandom.current().nextBytes(iv);
+
+        cipher = new AESCTR(engine, key.clone(), iv);
+        secondCipher = new AESCTR(engine, key, iv);
+
+        PooledByteBufAllocator alloc = PooledByteBufAllocator.DEFAULT;
+        heapBuffer = alloc.heapBuffer(size).writeZero(size);
+        directBuffer = alloc.directBuffer(size).writeZero(size);
+        compositeBuffer = alloc.compositeDirectBuffer(Integer.MAX_VALUE);
+
+        for (int remaining = size; remaining > 0; remaining -= COMPONENT_SIZE) {
+            int n = Math.min(remaining, COMPONENT_SIZE);
+            compositeBuffer.addComponent(true, alloc.directBuffer(n).writeZero(n));
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        heapBuffer.release();
+        directBuffer.release();
+        compositeBuffer.release();
+    }
+
+    @Benchmark
+    public ByteBuf processHeap() {
+        cipher.processBuffer(heapBuffer);
+        return heapBuffer;
+    }
+
+    @Benchmark
+    public ByteBuf processDirect() {
+        cipher.processBuffer(directBuffer);
+        return directBuffer;
+    }
+
+    @Benchmark
+    public ByteBuf processDirectTwice() {
+        cipher.processBuffer(directBuffer);
+        secondCipher.processBuffer(directBuffer);
+        return directBuffer;
+    }
+
+    @Benchmark
+    public ByteBuf processDirectFused() {
+        cipher.processBuffer(directBuffer, secondCipher);
+        return directBuffer;
+    }
+
+    @Benchmark
+    public ByteBuf processComposite() {
+        cipher.processBuffer(compositeBuffer);
+        return compositeBuffer;
+    }
+}
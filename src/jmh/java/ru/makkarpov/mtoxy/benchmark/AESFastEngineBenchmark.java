@@ -0,0 +1,35 @@
+package ru.makkarpov.mtoxy.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import ru.makkarpov.mtoxy.util.AESFastEngine;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AESFastEngineBenchmark {
+    private AESFastEngine engine;
+    private byte[] block;
+
+    @Setup
+    public void setup() {
+        byte[] key = new byte[32];
+        ThreadLocalRandom.current().nextBytes(key);
+
+        engine = new AESFastEngine();
+        engine.init(true, key);
+
+        block = new byte[16];
+    }
+
+    @Benchmark
+    public byte[] processBlock() {
+        engine.processBlock(block, 0, block, 0);
+        return block;
+    }
+}
@@ -0,0 +1,142 @@
+package ru.makkarpov.mtoxy.benchmark;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.*;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.util.ReferenceCountUtil;
+import org.openjdk.jmh.annotations.*;
+import ru.makkarpov.mtoxy.network.ForwardingHandler;
+import ru.makkarpov.mtoxy.stats.ConnectionType;
+import ru.makkarpov.mtoxy.stats.StatisticsTracker;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Forwards data between real loopback connections. Source channel reads one message of fixed size at a time, so every
+ * operation produces batches of reads, like a connection with many small packets queued. Number of flushes that reached
+ * destination socket is reported per operation: with NIO transport every one of them is a separate write system call.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ForwardingBenchmark {
+    /**
+     * Default of Netty socket channels, allocators set explicitly read a single message at a time otherwise.
+     */
+    private static final int MAX_MESSAGES_PER_READ = 16;
+
+    @Param({"1", "4", "0"})
+    public int flushAfterWrites;
+
+    @Param({"256", "4096"})
+    public int size;
+
+    @Param({"64"})
+    public int messages;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Syscalls {
+        public long flushes;
+    }
+
+    private EventLoopGroup group;
+    private Channel client, source, destination;
+    private ByteBuf message;
+
+    private AtomicLong received = new AtomicLong();
+    private AtomicLong flushes = new AtomicLong();
+    private long expected;
+
+    @Setup
+    public void setup() throws Exception {
+        group = new NioEventLoopGroup(3);
+
+        Channel sink = new ServerBootstrap()
+                .group(group)
+                .channel(NioServerSocketChannel.class)
+                .childHandler(new ChannelInboundHandlerAdapter() {
+                    @Override
+                    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+                        received.addAndGet(((ByteBuf) msg).readableBytes());
+                        ReferenceCountUtil.release(msg);
+                    }
+                })
+                .bind(new InetSocketAddress("127.0.0.1", 0)).sync().channel();
+
+        destination = new Bootstrap()
+                .group(group)
+                .channel(NioSocketChannel.class)
+                .handler(new ChannelOutboundHandlerAdapter() {
+                    @Override
+                    public void flush(ChannelHandlerContext ctx) throws Exception {
+                        flushes.incrementAndGet();
+                        ctx.flush();
+                    }
+                })
+                .connect(sink.localAddress()).sync().channel();
+
+        CompletableFuture<Channel> accepted = new CompletableFuture<>();
+        Channel proxy = new ServerBootstrap()
+                .group(group)
+                .channel(NioServerSocketChannel.class)
+                .childOption(ChannelOption.RCVBUF_ALLOCATOR, new FixedRecvByteBufAllocator(size)
+                        .maxMessagesPerRead(MAX_MESSAGES_PER_READ))
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) throws Exception {
+                        accepted.complete(ch);
+                    }
+                })
+                .bind(new InetSocketAddress("127.0.0.1", 0)).sync().channel();
+
+        client = new Bootstrap()
+                .group(group)
+                .channel(NioSocketChannel.class)
+                .handler(new ChannelInboundHandlerAdapter())
+                .connect(proxy.localAddress()).sync().channel();
+
+        source = accepted.get();
+        source.eventLoop().submit(() -> ForwardingHandler.setupForwarding(source, destination,
+                new ForwardingHandler.Options(new StatisticsTracker(), ConnectionType.HTTP, flushAfterWrites))).sync();
+
+        message = Unpooled.directBuffer(size).writeZero(size);
+    }
+
+    @TearDown
+    public void tearDown() {
+        group.shutdownGracefully(0, 0, TimeUnit.SECONDS).syncUninterruptibly();
+        message.release();
+    }
+
+    @Benchmark
+    public long forward(Syscalls syscalls) {
+        long flushesBefore = flushes.get();
+
+        for (int i = 0; i < messages; i++) {
+            client.write(message.retainedDuplicate());
+        }
+
+        client.flush();
+        expected += (long) messages * size;
+
+        while (received.get() < expected) {
+            Thread.yield();
+        }
+
+        syscalls.flushes += flushes.get() - flushesBefore;
+        return expected;
+    }
+}
@@ -0,0 +1,37 @@
+package ru.makkarpov.mtoxy.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import ru.makkarpov.mtoxy.util.AESCTR;
+import ru.makkarpov.mtoxy.util.CryptoEngine;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KeyDerivationBenchmark {
+    @Param({"TABLE", "JCA"})
+    public CryptoEngine engine;
+
+    private byte[] key, iv, secret;
+
+    @Setup
+    public void setup() {
+        key = new byte[32];
+        iv = new byte[16];
+        secret = new byte[16];
+        ThreadLocalRandom.current().nextBytes(key);
+        ThreadLocalRandom.current().nextBytes(iv);
+        ThreadLocalRandom.current().nextBytes(secret);
+    }
+
+    @Benchmark
+    public AESCTR fromKeyAndSecret() {
+        // fromKeyAndSecret() overwrites key with hash, so pass a copy each time.
+        return AESCTR.fromKeyAndSecret(engine, key.clone(), iv, secret);
+    }
+}
@@ -0,0 +1,64 @@
+package ru.makkarpov.mtoxy.benchmark;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.openjdk.jmh.annotations.*;
+import ru.makkarpov.mtoxy.network.Obfuscated2Codec;
+import ru.makkarpov.mtoxy.util.AESCTR;
+import ru.makkarpov.mtoxy.util.CryptoEngine;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class Obfuscated2CodecBenchmark {
+    @Param({"64", "1024", "16384", "65536"})
+    public int size;
+
+    @Param({"TABLE", "JCA"})
+    public CryptoEngine engine;
+
+    private EmbeddedChannel channel;
+    private ByteBuf buffer;
+
+    @Setup
+    public void setup() {
+        byte[] key = new byte[32];
+        byte[] iv = new byte[16];
+        ThreadLocalRandom.current().nextBytes(key);
+        ThreadLocalRandom.current().nextBytes(iv);
+
+        channel = new EmbeddedChannel(new Obfuscated2Codec(new AESCTR(engine, key.clone(), iv),
+                new AESCTR(engine, key.clone(), iv)));
+        buffer = PooledByteBufAllocator.DEFAULT.directBuffer(size).writeZero(size);
+    }
+
+    @TearDown
+    public void tearDown() {
+        channel.finishAndReleaseAll();
+        buffer.release();
+    }
+
+    @Benchmark
+    public ByteBuf encode() {
+        // Codec passes the same buffer through, so reference counts stay balanced:
+        channel.writeOutbound(buffer.retain());
+        ByteBuf r = channel.readOutbound();
+        r.release();
+        return r;
+    }
+
+    @Benchmark
+    public ByteBuf decode() {
+        channel.writeInbound(buffer.retain());
+        ByteBuf r = channel.readInbound();
+        r.release();
+        return r;
+    }
+}
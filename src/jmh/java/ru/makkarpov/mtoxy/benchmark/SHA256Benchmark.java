@@ -0,0 +1,55 @@
+package ru.makkarpov.mtoxy.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import ru.makkarpov.mtoxy.util.SHA256;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SHA256Benchmark {
+    private byte[] key, secret, digest;
+    private MessageDigest sha256;
+
+    @Setup
+    public void setup() throws NoSuchAlgorithmException {
+        key = new byte[SHA256.KEY_LENGTH];
+        secret = new byte[SHA256.SECRET_LENGTH];
+        ThreadLocalRandom.current().nextBytes(key);
+        ThreadLocalRandom.current().nextBytes(secret);
+
+        digest = new byte[SHA256.DIGEST_LENGTH];
+        sha256 = MessageDigest.getInstance("SHA-256");
+    }
+
+    @Benchmark
+    public byte[] specialized() {
+        SHA256.hashKeyAndSecret(key, secret, digest);
+        return digest;
+    }
+
+    @Benchmark
+    public byte[] jca() throws NoSuchAlgorithmException, DigestException {
+        MessageDigest md = MessageDigest.getInstance("SHA-256");
+        md.update(key);
+        md.update(secret);
+        md.digest(digest, 0, digest.length);
+        return digest;
+    }
+
+    @Benchmark
+    public byte[] jcaReused() throws DigestException {
+        sha256.update(key);
+        sha256.update(secret);
+        sha256.digest(digest, 0, digest.length);
+        return digest;
+    }
+}
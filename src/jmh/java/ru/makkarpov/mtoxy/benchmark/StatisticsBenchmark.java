@@ -0,0 +1,33 @@
+package ru.makkarpov.mtoxy.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import ru.makkarpov.mtoxy.stats.ConnectionType;
+import ru.makkarpov.mtoxy.stats.StatisticsTracker;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cost of counting forwarded bytes when all worker threads update the same counter, as every read and write does.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(4)
+@Fork(1)
+public class StatisticsBenchmark {
+    private StatisticsTracker tracker = new StatisticsTracker();
+    private AtomicLong atomic = new AtomicLong();
+
+    @Benchmark
+    public void tracker() {
+        tracker.bytesForwarded(ConnectionType.MTPROTO, 1024);
+    }
+
+    @Benchmark
+    public long atomic() {
+        return atomic.addAndGet(1024);
+    }
+}
@@ -0,0 +1,158 @@
+package ru.makkarpov.mtoxy.benchmark;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.*;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.util.ReferenceCountUtil;
+import org.openjdk.jmh.annotations.*;
+import ru.makkarpov.mtoxy.network.ForwardingHandler;
+import ru.makkarpov.mtoxy.network.NetworkTransport;
+import ru.makkarpov.mtoxy.stats.ConnectionType;
+import ru.makkarpov.mtoxy.stats.StatisticsTracker;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares network transports on a loopback proxy that accepts a connection, connects to a sink and forwards data
+ * with {@link ForwardingHandler}, the same way as HTTP passthrough does. Transports that are not available on the
+ * system fail at setup.
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TransportBenchmark {
+    @Param({"epoll", "nio"})
+    public String transport;
+
+    @Param({"4096"})
+    public int size;
+
+    @Param({"64"})
+    public int messages;
+
+    @ChannelHandler.Sharable
+    private class Sink extends ChannelInboundHandlerAdapter {
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+            received.addAndGet(((ByteBuf) msg).readableBytes());
+            ReferenceCountUtil.release(msg);
+        }
+    }
+
+    private EventLoopGroup group;
+    private Class<? extends SocketChannel> socketChannel;
+    private Channel proxy, client;
+    private ByteBuf message;
+
+    private AtomicLong received = new AtomicLong();
+    private long expected;
+
+    @Setup
+    public void setup() throws Exception {
+        NetworkTransport t = NetworkTransport.valueOf(transport.toUpperCase());
+        if (!t.isAvailable) {
+            throw new IllegalStateException("Network transport " + transport + " is not available");
+        }
+
+        group = t.createEventLoopGroup(2);
+        socketChannel = t.socketChannel;
+
+        Channel sink = new ServerBootstrap()
+                .group(group)
+                .channel(t.serverSocketChannel)
+                .childHandler(new Sink())
+                .bind(new InetSocketAddress("127.0.0.1", 0)).sync().channel();
+
+        proxy = new ServerBootstrap()
+                .group(group)
+                .channel(t.serverSocketChannel)
+                .childOption(ChannelOption.AUTO_READ, false)
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) throws Exception {
+                        new Bootstrap()
+                                .group(ch.eventLoop())
+                                .channel(socketChannel)
+                                .handler(new ChannelInboundHandlerAdapter())
+                                .connect(sink.localAddress())
+                                .addListener((ChannelFutureListener) f -> {
+                                    if (!f.isSuccess()) {
+                                        ch.close();
+                                        return;
+                                    }
+
+                                    ForwardingHandler.setupForwarding(ch, f.channel(), new ForwardingHandler.Options(
+                                            new StatisticsTracker(), ConnectionType.HTTP, 1));
+                                    ch.config().setAutoRead(true);
+                                });
+                    }
+                })
+                .bind(new InetSocketAddress("127.0.0.1", 0)).sync().channel();
+
+        client = connect();
+        message = Unpooled.directBuffer(size).writeZero(size);
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (group != null) {
+            group.shutdownGracefully(0, 0, TimeUnit.SECONDS).syncUninterruptibly();
+            message.release();
+        }
+    }
+
+    private Channel connect() throws InterruptedException {
+        return new Bootstrap()
+                .group(group)
+                .channel(socketChannel)
+                .handler(new ChannelInboundHandlerAdapter())
+                .connect(proxy.localAddress()).sync().channel();
+    }
+
+    private void awaitReceived() {
+        while (received.get() < expected) {
+            Thread.yield();
+        }
+    }
+
+    /**
+     * Forwards a batch of messages through an established connection.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public long throughput() {
+        for (int i = 0; i < messages; i++) {
+            client.write(message.retainedDuplicate());
+        }
+
+        client.flush();
+        expected += (long) messages * size;
+
+        awaitReceived();
+        return expected;
+    }
+
+    /**
+     * Opens a connection through the proxy, forwards a single message over it and closes it.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public long connection() throws InterruptedException {
+        Channel ch = connect();
+
+        ch.writeAndFlush(message.retainedDuplicate());
+        expected += size;
+
+        awaitReceived();
+        ch.close().sync();
+        return expected;
+    }
+}
@@ -5,58 +5,137 @@ import io.netty.bootstrap.ServerBootstrap;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoop;
 import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollMode;
 import io.netty.channel.socket.SocketChannel;
+import io.netty.util.concurrent.EventExecutor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import ru.makkarpov.mtoxy.network.EarlyDataBudget;
+import ru.makkarpov.mtoxy.network.PeerProber;
 import ru.makkarpov.mtoxy.network.ProtocolDetector;
+import ru.makkarpov.mtoxy.network.UpstreamPool;
+import ru.makkarpov.mtoxy.stats.ClientStatistics;
+import ru.makkarpov.mtoxy.stats.ConnectionTimer;
+import ru.makkarpov.mtoxy.stats.LatencyStatistics;
 import ru.makkarpov.mtoxy.stats.StatisticsTracker;
+import ru.makkarpov.mtoxy.stats.TrafficCounters;
 import ru.makkarpov.mtoxy.util.Configuration;
+import ru.makkarpov.mtoxy.util.SocketOptions;
+import ru.makkarpov.mtoxy.util.TimingWheel;
 
+import javax.annotation.Nullable;
 import javax.inject.Inject;
 import javax.inject.Singleton;
 import java.net.InetSocketAddress;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
 import java.util.Set;
 
 @Singleton
 public class MTServer {
     private static final Logger LOG = LoggerFactory.getLogger(MTServer.class);
 
+    private static final long TIMING_WHEEL_TICK = 100;
+    private static final int TIMING_WHEEL_SIZE = 512;
+
     private Set<Channel> masterChannels = new HashSet<>();
 
     private Configuration cfg;
     private StatisticsTracker statisticsTracker;
+    private LatencyStatistics latencyStatistics;
     private EventLoopGroup bossGroup;
     private EventLoopGroup workerGroup;
+    private Map<EventLoop, UpstreamPool> upstreamPools = new IdentityHashMap<>();
+    private Map<EventLoop, TimingWheel> timingWheels = new IdentityHashMap<>();
+    private Map<EventLoop, ClientStatistics> clientStatistics = new IdentityHashMap<>();
+    private PeerProber peerProber;
+    private EarlyDataBudget earlyDataBudget;
 
     @Inject
-    public MTServer(Configuration cfg, StatisticsTracker statisticsTracker) {
+    public MTServer(Configuration cfg, StatisticsTracker statisticsTracker, LatencyStatistics latencyStatistics) {
         this.cfg = cfg;
         this.statisticsTracker = statisticsTracker;
-        bossGroup = cfg.getNetworkTransport().createEventLoopGroup(cfg.getBossThreads());
+        this.latencyStatistics = latencyStatistics;
+        // Every listening socket of a shard should be accepted by its own thread:
+        bossGroup = cfg.getNetworkTransport().createEventLoopGroup(Math.max(cfg.getBossThreads(),
+                cfg.getListenShards()));
         workerGroup = cfg.getNetworkTransport().createEventLoopGroup(cfg.getWorkerThreads());
+
+        for (EventExecutor e: workerGroup) {
+            upstreamPools.put((EventLoop) e, new UpstreamPool(this, (EventLoop) e));
+            timingWheels.put((EventLoop) e, new TimingWheel((EventLoop) e, TIMING_WHEEL_TICK, TIMING_WHEEL_SIZE));
+
+            if (cfg.getClientStatisticsSize() > 0) {
+                clientStatistics.put((EventLoop) e, new ClientStatistics(cfg.getClientStatisticsSize()));
+            }
+        }
+
+        peerProber = new PeerProber(this);
+        earlyDataBudget = new EarlyDataBudget(cfg.getEarlyDataTotalLimit());
     }
 
     public void start() {
         ServerBootstrap sb = new ServerBootstrap()
                 .group(bossGroup, workerGroup)
                 .channel(cfg.getNetworkTransport().serverSocketChannel)
-                .option(ChannelOption.SO_BACKLOG, 128)
-                .childHandler(new ChannelInitializer<SocketChannel>() {
-                    @Override
-                    protected void initChannel(SocketChannel ch) throws Exception {
-                        ch.pipeline().addLast(new ProtocolDetector(MTServer.this));
-                    }
-                });
-
-        for (InetSocketAddress a: cfg.getListenAddresses()) {
-            masterChannels.add(sb.bind(a).awaitUninterruptibly().channel());
+                .option(ChannelOption.SO_BACKLOG, cfg.getListenBacklog())
+                .childOption(ChannelOption.WRITE_BUFFER_WATER_MARK, cfg.getClientWaterMark());
+
+        cfg.getClientSocketOptions().apply(sb);
+
+        if (cfg.isHttpSplice()) {
+            // Mode of a channel cannot be changed after registration, so this applies to all accepted connections:
+            sb.childOption(EpollChannelOption.EPOLL_MODE, EpollMode.LEVEL_TRIGGERED);
+        }
+
+        if (cfg.getListenShards() > 1) {
+            sb.option(EpollChannelOption.SO_REUSEPORT, true);
+        }
+
+        // Server channels are registered on boss threads in turn, so shards of an address end up on different ones:
+        for (int i = 0; i < cfg.getListenAddresses().size(); i++) {
+            ServerBootstrap listenerBootstrap = sb.clone()
+                    .childHandler(createClientInitializer(statisticsTracker.getListener(i)));
+
+            for (int j = 0; j < cfg.getListenShards(); j++) {
+                masterChannels.add(listenerBootstrap.bind(cfg.getListenAddresses().get(i)).awaitUninterruptibly()
+                        .channel());
+            }
         }
 
+        peerProber.start();
+
         LOG.info("MTProto server was started successfully");
     }
 
+    /**
+     * @param listener Counters of listen address that connections are accepted on.
+     */
+    private ChannelInitializer<SocketChannel> createClientInitializer(TrafficCounters listener) {
+        return new ChannelInitializer<SocketChannel>() {
+            @Override
+            protected void initChannel(SocketChannel ch) throws Exception {
+                // Connections that don't complete the handshake in time are dropped:
+                TimingWheel.Timeout timeout = (cfg.getHandshakeTimeout() == 0) ? null :
+                        getTimingWheel(ch.eventLoop()).schedule(ch::close, cfg.getHandshakeTimeout());
+
+                if (timeout != null) {
+                    ch.closeFuture().addListener(f -> timeout.cancel());
+                }
+
+                // Don't read anything more while too much data is waiting for datacenters:
+                earlyDataBudget.pauseIfExhausted(ch);
+
+                ch.pipeline().addLast(new ProtocolDetector(MTServer.this, timeout,
+                        new ConnectionTimer(latencyStatistics), listener));
+            }
+        };
+    }
+
     public Configuration getConfiguration() {
         return cfg;
     }
@@ -65,6 +144,10 @@ public class MTServer {
         return statisticsTracker;
     }
 
+    public LatencyStatistics getLatencyStatistics() {
+        return latencyStatistics;
+    }
+
     public EventLoopGroup getBossGroup() {
         return bossGroup;
     }
@@ -73,10 +156,54 @@ public class MTServer {
         return workerGroup;
     }
 
-    public Bootstrap getBootstrap(InetSocketAddress remote) {
+    /**
+     * @return Upstream connection pool for specified worker event loop.
+     */
+    public UpstreamPool getUpstreamPool(EventLoop eventLoop) {
+        return upstreamPools.get(eventLoop);
+    }
+
+    /**
+     * @return Budget for data buffered by clients that are waiting for connection to datacenter.
+     */
+    public EarlyDataBudget getEarlyDataBudget() {
+        return earlyDataBudget;
+    }
+
+    /**
+     * @return Timing wheel for specified worker event loop, which can be used only from that loop.
+     */
+    public TimingWheel getTimingWheel(EventLoop eventLoop) {
+        return timingWheels.get(eventLoop);
+    }
+
+    /**
+     * @return Client statistics for specified worker event loop, which can be used only from that loop, or null if
+     * they are disabled.
+     */
+    @Nullable
+    public ClientStatistics getClientStatistics(EventLoop eventLoop) {
+        return clientStatistics.get(eventLoop);
+    }
+
+    /**
+     * @return Bootstrap for a connection that will be forwarded to or from a client served by specified event loop.
+     * Unless disabled in configuration, connection will be registered on the same loop, so both connections are
+     * handled by the same thread.
+     */
+    public Bootstrap getUpstreamBootstrap(InetSocketAddress remote, EventLoop clientLoop, SocketOptions options) {
+        return getBootstrap(remote, cfg.isUpstreamLoopAffinity() ? clientLoop : getWorkerGroup(), options);
+    }
+
+    public Bootstrap getBootstrap(InetSocketAddress remote, EventLoopGroup group, SocketOptions options) {
+        return options.apply(getBootstrap(remote, group));
+    }
+
+    public Bootstrap getBootstrap(InetSocketAddress remote, EventLoopGroup group) {
         return new Bootstrap()
-                .group(getWorkerGroup())
+                .group(group)
                 .channel(cfg.getNetworkTransport().socketChannel)
+                .option(ChannelOption.WRITE_BUFFER_WATER_MARK, cfg.getUpstreamWaterMark())
                 .remoteAddress(remote);
     }
 }
@@ -8,6 +8,7 @@ import com.typesafe.config.ConfigFactory;
 import joptsimple.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import ru.makkarpov.mtoxy.stats.MetricsServer;
 import ru.makkarpov.mtoxy.stats.StatisticsReporter;
 
 import javax.inject.Inject;
@@ -72,16 +73,19 @@ public class MToxy {
 
     private MTServer mtServer;
     private StatisticsReporter reporter;
+    private MetricsServer metricsServer;
 
     @Inject
-    public MToxy(MTServer mtServer, StatisticsReporter reporter) {
+    public MToxy(MTServer mtServer, StatisticsReporter reporter, MetricsServer metricsServer) {
         this.mtServer = mtServer;
         this.reporter = reporter;
+        this.metricsServer = metricsServer;
     }
 
     private void run() {
         LOG.info("Starting mtoxy...");
         mtServer.start();
+        metricsServer.start();
         reporter.run();
     }
 }
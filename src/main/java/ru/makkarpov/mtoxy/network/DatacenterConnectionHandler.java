@@ -2,15 +2,17 @@ package ru.makkarpov.mtoxy.network;
 
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
 import io.netty.channel.*;
-import io.netty.channel.socket.SocketChannel;
+import io.netty.util.concurrent.Future;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import ru.makkarpov.mtoxy.MTServer;
+import ru.makkarpov.mtoxy.stats.ConnectionTimer;
 import ru.makkarpov.mtoxy.stats.ConnectionType;
+import ru.makkarpov.mtoxy.util.PeerGroup;
 import ru.makkarpov.mtoxy.util.PeerRecord;
 
-import java.util.List;
 
 /**
  * A handler that will connect to specified Telegram datacenter upon reception of a HandshakeMessage from Obfuscated2
@@ -19,16 +21,37 @@ import java.util.List;
 public class DatacenterConnectionHandler extends ChannelInboundHandlerAdapter {
     private static final Logger LOG = LoggerFactory.getLogger(DatacenterConnectionHandler.class);
 
+    /**
+     * Buffered messages are merged into a single buffer once there are more of them.
+     */
+    private static final int MAX_AWAITING_COMPONENTS = 4;
+
     private MTServer server;
-    private CompositeByteBuf awaitingMessages;
+    private ConnectionTimer timer;
+    private StatisticsHandler statistics;
+
+    /**
+     * Data received after handshake while connection to datacenter is being established, null if there is none.
+     */
+    private ByteBuf awaitingMessages;
+    private int awaitingBytes;
 
-    public DatacenterConnectionHandler(MTServer server) {
+    public DatacenterConnectionHandler(MTServer server, ConnectionTimer timer, StatisticsHandler statistics) {
         this.server = server;
+        this.timer = timer;
+        this.statistics = statistics;
     }
 
     @Override
-    public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
-        awaitingMessages = ctx.alloc().compositeBuffer();
+    public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+        // Connection was closed before messages were handed over to forwarding:
+        if (awaitingMessages != null) {
+            awaitingMessages.release();
+            awaitingMessages = null;
+        }
+
+        server.getEarlyDataBudget().release(awaitingBytes);
+        awaitingBytes = 0;
     }
 
     @Override
@@ -39,50 +62,117 @@ public class DatacenterConnectionHandler extends ChannelInboundHandlerAdapter {
             ctx.channel().config().setAutoRead(false);
 
             int dcNumber = ((Obfuscated2Handshaker.HandshakeCompletedMessage) msg).getDatacenterNumber();
-            List<PeerRecord> peers = server.getConfiguration().getPeers();
-            int peerNumber = (Math.abs(dcNumber) - 1) % peers.size();
-            PeerRecord peer = peers.get(peerNumber);
-            Obfuscated2Handshaker handshaker = Obfuscated2Handshaker.fromPeer(peer, dcNumber);
-
-            ChannelFuture future = server.getBootstrap(peer.getAddress())
-                    .handler(new ChannelInitializer<SocketChannel>() {
-                        @Override
-                        protected void initChannel(SocketChannel ch) throws Exception {
-                            ch.pipeline().addLast(handshaker);
-                        }
-                    })
-                    .connect();
+            timer.handshakeCompleted(dcNumber);
+
+            // Statistics and routing use the same mapping, so they always agree on the datacenter:
+            int dcIndex = server.getConfiguration().getDatacenterIndex(dcNumber);
+            statistics.datacenterSelected(server.getStatisticsTracker().getDatacenter(dcIndex));
+
+            PeerGroup group = server.getConfiguration().getPeers()
+                    .get(server.getConfiguration().getPeerGroupIndex(dcNumber));
+            PeerRecord peer = group.select();
+
+            // Use already established connection if there is one:
+            Channel pooled = server.getUpstreamPool(ctx.channel().eventLoop()).acquire(peer, dcNumber);
+            if (pooled != null) {
+                startForwarding(ctx, pooled, peer);
+                return;
+            }
+
+            Future<Channel> future = UpstreamConnector.connect(server, ctx.channel().eventLoop(), group, dcNumber);
+
+            // Connection may take a while with retries, don't keep it up for nothing:
+            ctx.channel().closeFuture().addListener(f -> future.cancel(false));
 
             future.addListener(f -> {
-                if (future.isSuccess()) {
-                    // Wait for handshake:
-                    handshaker.getHandshakePromise().addListener(f1 -> {
-                        Channel ch = future.channel();
-
-                        // Are we still connected?
-                        if (!ctx.channel().isRegistered()) {
-                            ch.close();
-                            return;
-                        }
-
-                        if (f1.isSuccess()) {
-                            // Setup forwarding and resume reading
-                            ForwardingHandler.setupForwarding(ctx.channel(), ch);
-                            ctx.channel().pipeline().remove(DatacenterConnectionHandler.this);
-                            // Inject awaiting messages right after codec:
-                            ctx.channel().pipeline().context(Obfuscated2Codec.class).fireChannelRead(awaitingMessages);
-                            ctx.channel().config().setAutoRead(true);
-                        }
-                    });
-                } else {
-                    LOG.error("Failed to connect to peer: {} -> {}", ctx.channel().remoteAddress(),
-                            peer.getAddress(), future.cause());
+                if (f.isSuccess()) {
+                    Channel ch = (Channel) f.getNow();
+                    startForwarding(ctx, ch, ch.attr(UpstreamConnector.PEER).get());
+                } else if (!f.isCancelled()) {
+                    LOG.error("Failed to connect to peer: {} -> {}", ctx.channel().remoteAddress(), group, f.cause());
                     ctx.channel().close();
-                    server.getStatisticsTracker().connectionFailed(ConnectionType.MTPROTO);
+                    statistics.connectionFailed();
                 }
             });
         } else if (msg instanceof ByteBuf) {
-            awaitingMessages.addComponent(true, (ByteBuf) msg);
+            bufferMessage(ctx, (ByteBuf) msg);
+        }
+    }
+
+    /**
+     * Keep a message until forwarding is set up. Reading is suspended at this point, so only the rest of data that was
+     * read along with the handshake ends up here. It is kept even if the global budget is exhausted, and then new
+     * connections are not read from until it's available again. Only connections over the per-connection limit are
+     * dropped.
+     */
+    private void bufferMessage(ChannelHandlerContext ctx, ByteBuf msg) {
+        int length = msg.readableBytes();
+
+        if (awaitingBytes + length > server.getConfiguration().getEarlyDataLimit()) {
+            msg.release();
+            LOG.debug("Too much early data, dropping connection from {}", ctx.channel().remoteAddress());
+            ctx.close();
+            statistics.connectionFailed();
+            return;
+        }
+
+        server.getEarlyDataBudget().acquire(length);
+        awaitingBytes += length;
+
+        if (awaitingMessages == null) {
+            awaitingMessages = msg;
+            return;
+        }
+
+        if (!(awaitingMessages instanceof CompositeByteBuf)) {
+            awaitingMessages = ctx.alloc().compositeBuffer(MAX_AWAITING_COMPONENTS)
+                    .addComponent(true, awaitingMessages);
+        }
+
+        ((CompositeByteBuf) awaitingMessages).addComponent(true, msg);
+    }
+
+    /**
+     * Set up forwarding to upstream channel with completed handshake and resume reading.
+     */
+    private void startForwarding(ChannelHandlerContext ctx, Channel ch, PeerRecord peer) {
+        // Are we still connected?
+        if (!ctx.channel().isRegistered()) {
+            ch.close();
+            return;
+        }
+
+        statistics.peerSelected(server.getStatisticsTracker().getPeer(peer));
+
+        // Resume reading first, forwarding handler may want to suspend it again while handling awaiting messages:
+        ctx.channel().config().setAutoRead(true);
+
+        ForwardingHandler.Options options = new ForwardingHandler.Options(server.getStatisticsTracker(),
+                ConnectionType.MTPROTO, server.getConfiguration().getFlushAfterWrites(),
+                server.getTimingWheel(ctx.channel().eventLoop()), server.getConfiguration().getIdleTimeout(), timer);
+
+        // Ownership of awaiting messages is passed to forwarding:
+        ByteBuf pending = (awaitingMessages != null) ? awaitingMessages : Unpooled.EMPTY_BUFFER;
+        awaitingMessages = null;
+        server.getEarlyDataBudget().release(awaitingBytes);
+        awaitingBytes = 0;
+
+        if (server.getConfiguration().isFusedForwarding()) {
+            // Awaiting messages will be written directly to the datacenter:
+            ForwardingHandler.setupFusedForwarding(ctx.channel(), ch, options, pending);
+            ctx.channel().pipeline().remove(this);
+        } else {
+            ForwardingHandler.setupForwarding(ctx.channel(), ch, options);
+            ctx.channel().pipeline().remove(this);
+
+            if (pending.isReadable()) {
+                // Inject awaiting messages right after codec:
+                ctx.channel().pipeline().context(Obfuscated2Codec.class)
+                        .fireChannelRead(pending)
+                        .fireChannelReadComplete();
+            } else {
+                pending.release();
+            }
         }
     }
 
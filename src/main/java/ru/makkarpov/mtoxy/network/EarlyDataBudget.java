@@ -0,0 +1,95 @@
+package ru.makkarpov.mtoxy.network;
+
+import io.netty.channel.Channel;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limit of memory taken by data that clients have sent before connection to datacenter was established, shared by
+ * all connections of the server. Data that has already been read is always accepted, but while the budget is
+ * exhausted new connections are not read from, until enough data is handed over to datacenters or dropped.
+ */
+public class EarlyDataBudget {
+    private final long limit;
+    private final AtomicLong used = new AtomicLong();
+
+    /**
+     * Connections which are not read from until the budget is available again.
+     */
+    private final Queue<Channel> paused = new ConcurrentLinkedQueue<>();
+
+    /**
+     * @param limit Maximum number of bytes that can be buffered at once, 0 for no limit.
+     */
+    public EarlyDataBudget(long limit) {
+        this.limit = limit;
+    }
+
+    /**
+     * Take specified amount of bytes from the budget, even if it's exhausted already.
+     */
+    public void acquire(int bytes) {
+        used.addAndGet(bytes);
+    }
+
+    public void release(int bytes) {
+        if (bytes == 0) {
+            return;
+        }
+
+        used.addAndGet(-bytes);
+
+        if (!paused.isEmpty() && !isExhausted()) {
+            resumePaused();
+        }
+    }
+
+    /**
+     * @return Whether buffered data has reached the limit.
+     */
+    public boolean isExhausted() {
+        return limit > 0 && used.get() >= limit;
+    }
+
+    /**
+     * Suspend reading from a newly accepted connection if the budget is exhausted. Reading will be resumed once the
+     * budget is available again.
+     */
+    public void pauseIfExhausted(Channel ch) {
+        if (!isExhausted()) {
+            return;
+        }
+
+        ch.config().setAutoRead(false);
+        paused.add(ch);
+        ch.closeFuture().addListener(f -> paused.remove(ch));
+
+        // Budget might have been released in the meantime, and then nobody would resume this connection:
+        if (!isExhausted()) {
+            resumePaused();
+        }
+    }
+
+    private void resumePaused() {
+        Channel ch;
+        while ((ch = paused.poll()) != null) {
+            ch.config().setAutoRead(true);
+        }
+    }
+
+    /**
+     * @return Number of bytes that are currently buffered.
+     */
+    public long getUsed() {
+        return used.get();
+    }
+
+    /**
+     * @return Number of connections that are not read from because the budget is exhausted.
+     */
+    public int getPausedConnections() {
+        return paused.size();
+    }
+}
@@ -1,30 +1,223 @@
 package ru.makkarpov.mtoxy.network;
 
+import io.netty.buffer.ByteBuf;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import ru.makkarpov.mtoxy.stats.ConnectionTimer;
+import ru.makkarpov.mtoxy.stats.ConnectionType;
+import ru.makkarpov.mtoxy.stats.LatencyPhase;
+import ru.makkarpov.mtoxy.stats.StatisticsTracker;
+import ru.makkarpov.mtoxy.util.AESCTR;
+import ru.makkarpov.mtoxy.util.TimingWheel;
+
+import javax.annotation.Nullable;
 
 public class ForwardingHandler extends ChannelInboundHandlerAdapter {
     private static final Logger LOG = LoggerFactory.getLogger(ForwardingHandler.class);
 
-    private Channel to;
+    /**
+     * Settings shared by both directions of forwarded connection.
+     */
+    public static class Options {
+        private final StatisticsTracker statisticsTracker;
+        private final ConnectionType connectionType;
+        private final int flushAfterWrites;
+
+        @Nullable
+        private final TimingWheel timingWheel;
+        private final long idleTimeout;
+
+        @Nullable
+        private final ConnectionTimer timer;
+
+        /**
+         * @param flushAfterWrites Number of writes after which destination is flushed while reading a batch of
+         *                         messages: 1 flushes every write, 0 flushes only when the batch is complete.
+         */
+        public Options(StatisticsTracker statisticsTracker, ConnectionType connectionType, int flushAfterWrites) {
+            this(statisticsTracker, connectionType, flushAfterWrites, null, 0, null);
+        }
+
+        /**
+         * @param timingWheel Timing wheel of the source channel event loop.
+         * @param idleTimeout Time in milliseconds after which both channels are closed if no data was forwarded in
+         *                    either direction, or 0 if not limited.
+         * @param timer Timer of the client connection to record the first forwarded data in both directions.
+         */
+        public Options(StatisticsTracker statisticsTracker, ConnectionType connectionType, int flushAfterWrites,
+                       @Nullable TimingWheel timingWheel, long idleTimeout, @Nullable ConnectionTimer timer) {
+            this.statisticsTracker = statisticsTracker;
+            this.connectionType = connectionType;
+            this.flushAfterWrites = flushAfterWrites;
+            this.timingWheel = (idleTimeout > 0) ? timingWheel : null;
+            this.idleTimeout = idleTimeout;
+            this.timer = timer;
+        }
+    }
+
+    private Channel from, to;
     private ForwardingHandler peerHandler;
     private boolean isClosed = false;
 
-    private ForwardingHandler(Channel to) {
+    private StatisticsTracker statisticsTracker;
+    private ConnectionType connectionType;
+
+    /**
+     * Whether reading from `from` is suspended until `to` will drain its outbound buffer. Accessed only from the event
+     * loop of `from`.
+     */
+    private boolean paused = false;
+
+    private int flushAfterWrites;
+    private int unflushedWrites = 0;
+
+    /**
+     * Ciphers for fused forwarding: incoming data is decrypted with the first one and encrypted with the second one
+     * in a single pass. Both are null for plain forwarding. This handler is their only user, so it releases them.
+     */
+    @Nullable
+    private AESCTR decrypter, encrypter;
+
+    /**
+     * Timing wheel for idle tracking, null if it's disabled. Idle timeout is checked only by the handler of the source
+     * channel, on its event loop.
+     */
+    @Nullable
+    private TimingWheel timingWheel;
+    private long idleTimeout;
+
+    @Nullable
+    private TimingWheel.Timeout idleCheck;
+
+    /**
+     * Time of the last read according to {@link #timingWheel}, written only when it changes to keep the hot path free
+     * of redundant volatile writes.
+     */
+    private volatile long lastActivity;
+
+    /**
+     * Timer to record the first forwarded data to, reset to null once it's recorded.
+     */
+    @Nullable
+    private ConnectionTimer timer;
+    private LatencyPhase firstDataPhase;
+
+    private ForwardingHandler(Channel from, Channel to, Options options, @Nullable AESCTR decrypter,
+                              @Nullable AESCTR encrypter) {
+        this.from = from;
         this.to = to;
+        this.statisticsTracker = options.statisticsTracker;
+        this.connectionType = options.connectionType;
+        this.flushAfterWrites = options.flushAfterWrites;
+        this.timingWheel = options.timingWheel;
+        this.idleTimeout = options.idleTimeout;
+        this.timer = options.timer;
+        this.decrypter = decrypter;
+        this.encrypter = encrypter;
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+        if (decrypter != null) {
+            decrypter.release();
+            encrypter.release();
+        }
     }
 
     @Override
     public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        if (idleCheck != null) {
+            idleCheck.cancel();
+            idleCheck = null;
+        }
+
+        updateReading();
         close();
     }
 
     @Override
     public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
-        to.writeAndFlush(msg);
+        if (timer != null) {
+            firstDataForwarded();
+        }
+
+        if (timingWheel != null) {
+            long now = timingWheel.now();
+            if (lastActivity != now) {
+                lastActivity = now;
+            }
+        }
+
+        if (decrypter != null && msg instanceof ByteBuf) {
+            decrypter.processBuffer((ByteBuf) msg, encrypter);
+        }
+
+        to.write(msg);
+
+        if (++unflushedWrites == flushAfterWrites) {
+            flush();
+        }
+
+        if (!to.isWritable()) {
+            // Unflushed data counts towards water marks, so make sure it will drain:
+            flush();
+            updateReading();
+        }
+    }
+
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+        flush();
+        ctx.fireChannelReadComplete();
+    }
+
+    private void firstDataForwarded() {
+        timer.firstByteForwarded(firstDataPhase);
+        timer = null;
+    }
+
+    private void flush() {
+        if (unflushedWrites > 0) {
+            unflushedWrites = 0;
+            to.flush();
+        }
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        // Our channel is the destination of the peer handler, let it decide on its own event loop:
+        if (peerHandler.from.eventLoop().inEventLoop()) {
+            peerHandler.updateReading();
+        } else {
+            peerHandler.from.eventLoop().execute(peerHandler::updateReading);
+        }
+
+        ctx.fireChannelWritabilityChanged();
+    }
+
+    /**
+     * Suspend or resume reading from `from` depending on whether `to` can accept more data. Must be called from the
+     * event loop of `from`. Since current writability is checked every time, it does not matter in which order
+     * writability changes are delivered.
+     */
+    private void updateReading() {
+        boolean shouldPause = from.isActive() && !to.isWritable();
+
+        if (shouldPause == paused) {
+            return;
+        }
+
+        paused = shouldPause;
+        from.config().setAutoRead(!shouldPause);
+
+        if (shouldPause) {
+            statisticsTracker.channelPaused(connectionType);
+        } else {
+            statisticsTracker.channelResumed(connectionType);
+        }
     }
 
     @Override
@@ -45,14 +238,78 @@ public class ForwardingHandler extends ChannelInboundHandlerAdapter {
         peerHandler.close();
     }
 
-    public static void setupForwarding(Channel src, Channel dst) {
-        ForwardingHandler first = new ForwardingHandler(dst);
-        ForwardingHandler second = new ForwardingHandler(src);
+    private void checkIdle() {
+        idleCheck = null;
+
+        if (isClosed || !from.isActive()) {
+            return;
+        }
 
+        long idle = timingWheel.now() - Math.max(lastActivity, peerHandler.lastActivity);
+        if (idle >= idleTimeout) {
+            LOG.debug("Closing idle forwarded connection: {} -> {}", from.remoteAddress(), to.remoteAddress());
+            from.close();
+            close();
+            return;
+        }
+
+        idleCheck = timingWheel.schedule(this::checkIdle, idleTimeout - idle);
+    }
+
+    public static void setupForwarding(Channel src, Channel dst, Options options) {
+        link(src, new ForwardingHandler(src, dst, options, null, null),
+                dst, new ForwardingHandler(dst, src, options, null, null));
+    }
+
+    /**
+     * Set up forwarding between two channels with Obfuscated2 codecs, replacing both codecs with forwarding handlers
+     * that re-encrypt data in a single pass.
+     *
+     * @param pending Data that was already received and decrypted by `src` codec, will be sent to `dst` first.
+     */
+    public static void setupFusedForwarding(Channel src, Channel dst, Options options, ByteBuf pending) {
+        Obfuscated2Codec srcCodec = src.pipeline().get(Obfuscated2Codec.class);
+        Obfuscated2Codec dstCodec = dst.pipeline().get(Obfuscated2Codec.class);
+
+        // Ciphers now belong to forwarding handlers:
+        srcCodec.handOverCiphers();
+        dstCodec.handOverCiphers();
+        src.pipeline().remove(srcCodec);
+        dst.pipeline().remove(dstCodec);
+
+        ForwardingHandler first = new ForwardingHandler(src, dst, options, srcCodec.getDecrypter(),
+                dstCodec.getEncrypter());
+
+        link(src, first, dst, new ForwardingHandler(dst, src, options, dstCodec.getDecrypter(),
+                srcCodec.getEncrypter()));
+
+        if (pending.isReadable() && first.timer != null) {
+            first.firstDataForwarded();
+        }
+
+        // Send pending data only after handlers are in place, otherwise the reply could arrive before them:
+        dstCodec.getEncrypter().processBuffer(pending);
+        dst.writeAndFlush(pending);
+    }
+
+    private static void link(Channel src, ForwardingHandler first, Channel dst, ForwardingHandler second) {
         first.peerHandler = second;
         second.peerHandler = first;
+        first.firstDataPhase = LatencyPhase.FIRST_BYTE_UPSTREAM;
+        second.firstDataPhase = LatencyPhase.FIRST_BYTE_CLIENT;
 
         src.pipeline().addLast(first);
         dst.pipeline().addLast(second);
+
+        if (first.timingWheel != null) {
+            first.lastActivity = first.timingWheel.now();
+            second.lastActivity = first.lastActivity;
+
+            if (src.eventLoop().inEventLoop()) {
+                first.checkIdle();
+            } else {
+                src.eventLoop().execute(first::checkIdle);
+            }
+        }
     }
 }
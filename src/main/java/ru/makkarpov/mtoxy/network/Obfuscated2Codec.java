@@ -19,11 +19,41 @@ public class Obfuscated2Codec extends MessageToMessageCodec<Object, Object> {
 
     private AESCTR encrypter, decrypter;
 
+    /**
+     * Whether ciphers should be released along with the codec.
+     */
+    private boolean ownsCiphers = true;
+
     public Obfuscated2Codec(AESCTR encrypter, AESCTR decrypter) {
         this.encrypter = encrypter;
         this.decrypter = decrypter;
     }
 
+    /**
+     * Keep ciphers after the codec is removed, they will be released by whoever uses them next.
+     */
+    public void handOverCiphers() {
+        ownsCiphers = false;
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+        super.handlerRemoved(ctx);
+
+        if (ownsCiphers) {
+            encrypter.release();
+            decrypter.release();
+        }
+    }
+
+    public AESCTR getEncrypter() {
+        return encrypter;
+    }
+
+    public AESCTR getDecrypter() {
+        return decrypter;
+    }
+
     private void process(AESCTR cipher, Object msg, List<Object> out) {
         if (msg instanceof ByteBuf) {
             cipher.processBuffer((ByteBuf) msg);
@@ -1,17 +1,21 @@
 package ru.makkarpov.mtoxy.network;
 
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
 import io.netty.channel.ChannelPromise;
+import io.netty.util.concurrent.FastThreadLocal;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import ru.makkarpov.mtoxy.util.AESCTR;
+import ru.makkarpov.mtoxy.util.CryptoEngine;
 import ru.makkarpov.mtoxy.util.PeerRecord;
 import ru.makkarpov.mtoxy.util.Utils;
 
 import javax.annotation.Nullable;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.concurrent.ThreadLocalRandom;
 
 /**
@@ -45,6 +49,36 @@ public class Obfuscated2Handshaker extends ChannelInboundHandlerAdapter {
         }
     }
 
+    /**
+     * Temporary arrays and digest used during handshake. Kept per event loop thread so that handshakes do not produce
+     * any garbage: ciphers copy everything they need from these. The only thing still allocated for a handshake is the
+     * state of both ciphers, which lives as long as the connection (see Obfuscated2HandshakerTest for the bound). JCA
+     * ciphers themselves are reused, see {@link ru.makkarpov.mtoxy.util.JCABlockCipher}.
+     */
+    private static class HandshakeScratch {
+        private final byte[] randomData = new byte[HANDSHAKE_LENGTH];
+        private final byte[] forwardKey = new byte[KEY_LENGTH];
+        private final byte[] forwardIv = new byte[IV_LENGTH];
+        private final byte[] reverseKey = new byte[KEY_LENGTH];
+        private final byte[] reverseIv = new byte[IV_LENGTH];
+        private final MessageDigest sha256;
+
+        private HandshakeScratch() {
+            try {
+                sha256 = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException("SHA-256 is not available", e);
+            }
+        }
+    }
+
+    private static final FastThreadLocal<HandshakeScratch> SCRATCH = new FastThreadLocal<HandshakeScratch>() {
+        @Override
+        protected HandshakeScratch initialValue() throws Exception {
+            return new HandshakeScratch();
+        }
+    };
+
     /**
      * Whether we are acting as client.
      */
@@ -61,6 +95,11 @@ public class Obfuscated2Handshaker extends ChannelInboundHandlerAdapter {
      */
     private int datacenterNumber;
 
+    /**
+     * Engine to use for ciphers created by this handshaker.
+     */
+    private CryptoEngine cryptoEngine;
+
     /**
      * Buffer to accumulate incoming handshake, needed only for server.
      */
@@ -76,16 +115,18 @@ public class Obfuscated2Handshaker extends ChannelInboundHandlerAdapter {
      */
     private ChannelPromise handshakePromise;
 
-    public Obfuscated2Handshaker(boolean isClient, @Nullable byte[] secret) {
+    public Obfuscated2Handshaker(boolean isClient, @Nullable byte[] secret, CryptoEngine cryptoEngine) {
         this.isClient = isClient;
         this.secret = secret;
         this.datacenterNumber = 0;
+        this.cryptoEngine = cryptoEngine;
     }
 
-    public Obfuscated2Handshaker(@Nullable byte[] secret, int datacenterNumber) {
+    public Obfuscated2Handshaker(@Nullable byte[] secret, int datacenterNumber, CryptoEngine cryptoEngine) {
         this.isClient = true;
         this.secret = secret;
         this.datacenterNumber = datacenterNumber;
+        this.cryptoEngine = cryptoEngine;
     }
 
     public ChannelPromise getHandshakePromise() {
@@ -114,8 +155,7 @@ public class Obfuscated2Handshaker extends ChannelInboundHandlerAdapter {
     public void channelActive(ChannelHandlerContext ctx) throws Exception {
         if (isClient) {
             // Perform client handshake
-            byte[] randomData = new byte[HANDSHAKE_LENGTH];
-            ByteBuf randomBuf = Unpooled.wrappedBuffer(randomData);
+            byte[] randomData = SCRATCH.get().randomData;
 
             // Generate random encryption key and IV. Not that this random doesn't need to be secure.
             do {
@@ -124,10 +164,9 @@ public class Obfuscated2Handshaker extends ChannelInboundHandlerAdapter {
 
             Utils.intToLittleEndian(PROXY_MAGIC_VALUE, randomData, PROTOCOL_SIGNATURE_OFFSET);
 
-            randomBuf.markWriterIndex();
-            randomBuf.writerIndex(PROTOCOL_SIGNATURE_OFFSET + PROTOCOL_SIGNATURE_LENGTH);
-            randomBuf.writeShortLE(datacenterNumber);
-            randomBuf.resetWriterIndex();
+            ByteBuf randomBuf = ctx.alloc().buffer(HANDSHAKE_LENGTH, HANDSHAKE_LENGTH);
+            randomBuf.writeBytes(randomData);
+            randomBuf.setShortLE(PROTOCOL_SIGNATURE_OFFSET + PROTOCOL_SIGNATURE_LENGTH, datacenterNumber);
 
             setupCiphers(randomBuf);
 
@@ -135,10 +174,17 @@ public class Obfuscated2Handshaker extends ChannelInboundHandlerAdapter {
             encrypter.skipGamma(PROTOCOL_SIGNATURE_OFFSET);
             encrypter.processBuffer(randomBuf, PROTOCOL_SIGNATURE_OFFSET, HANDSHAKE_LENGTH - PROTOCOL_SIGNATURE_OFFSET);
 
-            // Send handshake and replace ourselves:
-            ctx.writeAndFlush(randomBuf);
+            // Send handshake and replace ourselves, handshake is completed once it's written:
+            ChannelFuture written = ctx.writeAndFlush(randomBuf);
             ctx.pipeline().replace(this, "codec", new Obfuscated2Codec(encrypter, decrypter));
-            handshakePromise.setSuccess();
+
+            written.addListener(f -> {
+                if (f.isSuccess()) {
+                    handshakePromise.trySuccess();
+                } else {
+                    handshakePromise.tryFailure(f.cause());
+                }
+            });
         }
     }
 
@@ -156,6 +202,7 @@ public class Obfuscated2Handshaker extends ChannelInboundHandlerAdapter {
 
             int protocolSignature = handshakeBuffer.readIntLE();
             if (protocolSignature != PROXY_MAGIC_VALUE) {
+                releaseCiphers();
                 ctx.close();
                 return;
             }
@@ -177,15 +224,19 @@ public class Obfuscated2Handshaker extends ChannelInboundHandlerAdapter {
         handshakePromise.setFailure(cause);
     }
 
-    private void setupCiphers(ByteBuf handshakeBytes) {
-        byte[] forwardKey = new byte[KEY_LENGTH];
-        byte[] forwardIv = new byte[IV_LENGTH];
+    /**
+     * Create ciphers from handshake bytes. Package-private for allocation tests.
+     */
+    void setupCiphers(ByteBuf handshakeBytes) {
+        HandshakeScratch scratch = SCRATCH.get();
+        byte[] forwardKey = scratch.forwardKey;
+        byte[] forwardIv = scratch.forwardIv;
 
         handshakeBytes.getBytes(KEY_IV_OFFSET, forwardKey);
         handshakeBytes.getBytes(KEY_IV_OFFSET + KEY_LENGTH, forwardIv);
 
-        byte[] reverseKey = new byte[KEY_LENGTH];
-        byte[] reverseIv = new byte[IV_LENGTH];
+        byte[] reverseKey = scratch.reverseKey;
+        byte[] reverseIv = scratch.reverseIv;
 
         handshakeBytes.getBytes(KEY_IV_OFFSET + IV_LENGTH, reverseKey);
         handshakeBytes.getBytes(KEY_IV_OFFSET, reverseIv);
@@ -193,13 +244,21 @@ public class Obfuscated2Handshaker extends ChannelInboundHandlerAdapter {
         Utils.reverse(reverseKey);
         Utils.reverse(reverseIv);
 
-        AESCTR forward = AESCTR.fromKeyAndSecret(forwardKey, forwardIv, secret);
-        AESCTR reverse = AESCTR.fromKeyAndSecret(reverseKey, reverseIv, secret);
+        AESCTR forward = AESCTR.fromKeyAndSecret(cryptoEngine, forwardKey, forwardIv, secret, scratch.sha256);
+        AESCTR reverse = AESCTR.fromKeyAndSecret(cryptoEngine, reverseKey, reverseIv, secret, scratch.sha256);
 
         encrypter = isClient ? forward : reverse;
         decrypter = isClient ? reverse : forward;
     }
 
+    /**
+     * Release ciphers that will not be passed to codec. Package-private for allocation tests.
+     */
+    void releaseCiphers() {
+        encrypter.release();
+        decrypter.release();
+    }
+
     private static boolean checkForSignatures(byte[] data) {
         if (data[0] == ABRIDGED_SIGNATURE) {
             return true; // Signature for abridged MTProto
@@ -217,11 +276,11 @@ public class Obfuscated2Handshaker extends ChannelInboundHandlerAdapter {
                 check1 == 0xEEEEEEEE;
     }
 
-    public static Obfuscated2Handshaker fromPeer(PeerRecord pr) {
-        return fromPeer(pr, 0);
+    public static Obfuscated2Handshaker fromPeer(PeerRecord pr, CryptoEngine cryptoEngine) {
+        return fromPeer(pr, 0, cryptoEngine);
     }
 
-    public static Obfuscated2Handshaker fromPeer(PeerRecord pr, int datacenterNumber) {
-        return new Obfuscated2Handshaker(pr.getSecret(), datacenterNumber);
+    public static Obfuscated2Handshaker fromPeer(PeerRecord pr, int datacenterNumber, CryptoEngine cryptoEngine) {
+        return new Obfuscated2Handshaker(pr.getSecret(), datacenterNumber, cryptoEngine);
     }
 }
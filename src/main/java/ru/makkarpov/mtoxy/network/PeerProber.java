@@ -0,0 +1,74 @@
+package ru.makkarpov.mtoxy.network;
+
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoop;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.makkarpov.mtoxy.MTServer;
+import ru.makkarpov.mtoxy.util.PeerGroup;
+import ru.makkarpov.mtoxy.util.PeerHealth;
+import ru.makkarpov.mtoxy.util.PeerRecord;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodically opens plain TCP connections to every peer address to keep its latency statistics up to date and to bring
+ * failed addresses back into rotation without sacrificing client connections.
+ */
+public class PeerProber {
+    private static final Logger LOG = LoggerFactory.getLogger(PeerProber.class);
+
+    private MTServer server;
+    private EventLoop eventLoop;
+
+    public PeerProber(MTServer server) {
+        this.server = server;
+        this.eventLoop = server.getWorkerGroup().next();
+    }
+
+    public void start() {
+        long interval = server.getConfiguration().getPeerProbeInterval();
+
+        if (interval > 0) {
+            eventLoop.scheduleAtFixedRate(this::probeAll, 0, interval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void probeAll() {
+        for (PeerGroup pg: server.getConfiguration().getPeers()) {
+            for (PeerRecord pr: pg.getRecords()) {
+                probe(pr);
+            }
+        }
+    }
+
+    private void probe(PeerRecord pr) {
+        int timeout = (int) Math.min(Integer.MAX_VALUE, server.getConfiguration().getPeerProbeTimeout());
+        PeerHealth health = pr.getHealth();
+
+        // Don't interfere with a trial connection, but let the probe be one itself:
+        if (!health.isAvailable()) {
+            return;
+        }
+
+        health.connectStarted();
+        long start = System.nanoTime();
+
+        ChannelFuture future = server.getBootstrap(pr.getAddress(), eventLoop)
+                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, timeout)
+                .handler(new ChannelInboundHandlerAdapter())
+                .connect();
+
+        future.addListener(f -> {
+            if (future.isSuccess()) {
+                health.connectSucceeded(System.nanoTime() - start);
+                future.channel().close();
+            } else {
+                LOG.debug("Probe of peer {} failed", pr.getAddress(), future.cause());
+                health.connectFailed();
+            }
+        });
+    }
+}
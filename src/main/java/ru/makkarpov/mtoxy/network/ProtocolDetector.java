@@ -3,26 +3,54 @@ package ru.makkarpov.mtoxy.network;
 import io.netty.bootstrap.Bootstrap;
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.*;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollMode;
 import io.netty.channel.socket.SocketChannel;
+import io.netty.util.ReferenceCountUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import ru.makkarpov.mtoxy.MTServer;
+import ru.makkarpov.mtoxy.stats.ClientStatistics;
+import ru.makkarpov.mtoxy.stats.ConnectionTimer;
 import ru.makkarpov.mtoxy.stats.ConnectionType;
+import ru.makkarpov.mtoxy.stats.TrafficCounters;
+import ru.makkarpov.mtoxy.util.SocketOptions;
+import ru.makkarpov.mtoxy.util.TimingWheel;
 
+import javax.annotation.Nullable;
 import java.net.InetSocketAddress;
 
-@ChannelHandler.Sharable
 public class ProtocolDetector extends ChannelInboundHandlerAdapter {
     private static final Logger LOG = LoggerFactory.getLogger(ProtocolDetector.class);
 
     private MTServer server;
     private StatisticsHandler httpStatistics, mtStatistics;
 
-    public ProtocolDetector(MTServer server) {
+    private ConnectionTimer timer;
+    private TrafficCounters listener;
+
+    @Nullable
+    private TimingWheel.Timeout handshakeTimeout;
+
+    /**
+     * @param handshakeTimeout Timeout that closes the connection, will be cancelled once the handshake is completed.
+     * @param timer Timer started when the connection was accepted.
+     * @param listener Counters of listen address that accepted the connection.
+     */
+    public ProtocolDetector(MTServer server, @Nullable TimingWheel.Timeout handshakeTimeout, ConnectionTimer timer,
+                            TrafficCounters listener) {
         this.server = server;
+        this.handshakeTimeout = handshakeTimeout;
+        this.timer = timer;
+        this.listener = listener;
+    }
 
-        httpStatistics = new StatisticsHandler(server.getStatisticsTracker(), ConnectionType.HTTP);
-        mtStatistics = new StatisticsHandler(server.getStatisticsTracker(), ConnectionType.MTPROTO);
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+        ClientStatistics clients = server.getClientStatistics(ctx.channel().eventLoop());
+
+        httpStatistics = new StatisticsHandler(server.getStatisticsTracker(), ConnectionType.HTTP, listener, clients);
+        mtStatistics = new StatisticsHandler(server.getStatisticsTracker(), ConnectionType.MTPROTO, listener, clients);
     }
 
     private void setupHttpConnection(ChannelHandlerContext ctx, Object msg) {
@@ -31,8 +59,17 @@ public class ProtocolDetector extends ChannelInboundHandlerAdapter {
             return;
         }
 
+        // Suspend reading until we will establish connection, so the rest of request will not end up here:
+        ctx.channel().config().setAutoRead(false);
+        ctx.pipeline().remove(this);
+
+        // Splicing requires both connections to be on the same event loop and in level-triggered mode:
+        boolean splice = server.getConfiguration().isHttpSplice();
+
         InetSocketAddress backend = server.getConfiguration().getHttpBackend();
-        Bootstrap bs = server.getBootstrap(backend)
+        SocketOptions options = server.getConfiguration().getHttpBackendSocketOptions();
+        Bootstrap bs = (splice ? server.getBootstrap(backend, ctx.channel().eventLoop(), options) :
+                server.getUpstreamBootstrap(backend, ctx.channel().eventLoop(), options))
                 .handler(new ChannelInitializer<SocketChannel>() {
                     @Override
                     protected void initChannel(SocketChannel ch) throws Exception {
@@ -40,34 +77,82 @@ public class ProtocolDetector extends ChannelInboundHandlerAdapter {
                     }
                 });
 
+        if (splice) {
+            bs.option(EpollChannelOption.EPOLL_MODE, EpollMode.LEVEL_TRIGGERED);
+        }
+
         ChannelFuture future = bs.connect();
-        future.addListener(f -> {
+
+        long connectTimeout = server.getConfiguration().getUpstreamConnectTimeout();
+        TimingWheel.Timeout timeout = (connectTimeout == 0) ? null :
+                server.getTimingWheel(ctx.channel().eventLoop()).schedule(future.channel()::close, connectTimeout);
+
+        future.addListener(f -> ctx.channel().eventLoop().execute(() -> {
+            if (timeout != null) {
+                timeout.cancel();
+            }
+
             Channel ch = future.channel();
-            if (future.isSuccess()) {
-                ctx.channel().pipeline().addFirst(httpStatistics);
-                ForwardingHandler.setupForwarding(ctx.channel(), ch);
-                ctx.pipeline().fireChannelRead(msg);
-            } else {
+            if (!future.isSuccess()) {
                 LOG.info("Cannot set up HTTP forwarding {} -> {}", ctx.channel().remoteAddress(), backend,
                         future.cause());
-                ctx.close();
+                ReferenceCountUtil.release(msg);
+                ctx.channel().close();
+                return;
+            }
+
+            // Are we still connected?
+            if (!ctx.channel().isActive()) {
+                ReferenceCountUtil.release(msg);
+                ch.close();
+                return;
+            }
+
+            cancelHandshakeTimeout();
+            ctx.channel().pipeline().addFirst(httpStatistics);
+
+            if (splice && SplicedForwarding.isSupported(ctx.channel(), ch)) {
+                SplicedForwarding.setup(ctx.channel(), ch, (ByteBuf) msg);
+                return;
             }
-        });
+
+            ForwardingHandler.setupForwarding(ctx.channel(), ch, new ForwardingHandler.Options(
+                    server.getStatisticsTracker(), ConnectionType.HTTP,
+                    server.getConfiguration().getFlushAfterWrites(),
+                    server.getTimingWheel(ctx.channel().eventLoop()), server.getConfiguration().getIdleTimeout(),
+                    timer));
+            ctx.channel().config().setAutoRead(true);
+            ctx.pipeline().fireChannelRead(msg).fireChannelReadComplete();
+        }));
     }
 
     private void setupMtConnection(ChannelHandlerContext ctx, Object msg) {
+        Obfuscated2Handshaker handshaker = new Obfuscated2Handshaker(false, server.getConfiguration().getSecretKey(),
+                server.getConfiguration().getCryptoEngine());
+
         ctx.pipeline().remove(this);
         ctx.pipeline().addLast(
                 mtStatistics,
-                new Obfuscated2Handshaker(false, server.getConfiguration().getSecretKey()),
-                new DatacenterConnectionHandler(server)
+                handshaker,
+                new DatacenterConnectionHandler(server, timer, mtStatistics)
         );
+
+        // Connection to datacenter is limited by its own timeout:
+        handshaker.getHandshakePromise().addListener(f -> cancelHandshakeTimeout());
         ctx.pipeline().fireChannelRead(msg);
     }
 
+    private void cancelHandshakeTimeout() {
+        if (handshakeTimeout != null) {
+            handshakeTimeout.cancel();
+            handshakeTimeout = null;
+        }
+    }
+
     @Override
     public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
         ByteBuf buf = (ByteBuf) msg;
+        timer.protocolDetected();
 
         // Is that HTTP?
         if (buf.readableBytes() >= 4) {
@@ -0,0 +1,149 @@
+package ru.makkarpov.mtoxy.network;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.epoll.EpollMode;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.epoll.EpollTcpInfo;
+import io.netty.util.concurrent.Future;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Forwarding of plain connections with splice(2): data is moved between sockets by the kernel and never gets copied
+ * to userspace buffers. Since no handlers see the data, forwarded bytes are not counted in statistics.
+ *
+ * Supported only by epoll transport and only when both channels are registered on the same event loop in level-triggered
+ * mode, which can be set only before registration.
+ */
+public class SplicedForwarding {
+    private static final Logger LOG = LoggerFactory.getLogger(SplicedForwarding.class);
+
+    private static final int TCP_ESTABLISHED = 1;
+    private static final int DRAIN_CHUNK_SIZE = 16384;
+
+    /**
+     * Netty does not notice end of stream while splicing, so a closed connection stays readable and the event loop
+     * would spin on it forever. This handler sees every such wakeup as a read completion, and once the peer has sent
+     * FIN, it reads the rest of data itself, forwards it after everything that was spliced and closes both channels.
+     */
+    private static class EndOfStreamHandler extends ChannelInboundHandlerAdapter {
+        private final Channel peer;
+        private final EpollTcpInfo tcpInfo = new EpollTcpInfo();
+        private boolean finished;
+
+        private EndOfStreamHandler(Channel peer) {
+            this.peer = peer;
+        }
+
+        @Override
+        public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+            EpollSocketChannel ch = (EpollSocketChannel) ctx.channel();
+
+            if (ch.tcpInfo(tcpInfo).state() == TCP_ESTABLISHED) {
+                return;
+            }
+
+            // Splices that are still writing to the peer will turn reading back on once they are done, so the channel
+            // may wake up again until it is closed. These wakeups find nothing to read and need no handling:
+            finished = true;
+            ctx.pipeline().remove(this);
+            ch.config().setAutoRead(false);
+
+            // Peer will not send anything after FIN, so the receive queue holds all remaining data:
+            ByteBuf tail = ch.alloc().directBuffer();
+            try {
+                int n;
+                do {
+                    tail.ensureWritable(DRAIN_CHUNK_SIZE);
+                    ByteBuffer nio = tail.internalNioBuffer(tail.writerIndex(), tail.writableBytes());
+                    n = ch.fd().read(nio, nio.position(), nio.limit());
+
+                    if (n > 0) {
+                        tail.writerIndex(tail.writerIndex() + n);
+                    }
+                } while (n > 0);
+            } catch (IOException e) {
+                tail.release();
+                LOG.debug("Failed to read the rest of spliced connection {}", ch.remoteAddress(), e);
+                ch.close();
+                return;
+            }
+
+            peer.writeAndFlush(tail).addListener(f -> ch.close());
+        }
+    }
+
+    private SplicedForwarding() {
+    }
+
+    public static boolean isSupported(Channel src, Channel dst) {
+        return isLevelTriggered(src) && isLevelTriggered(dst) && src.eventLoop() == dst.eventLoop();
+    }
+
+    private static boolean isLevelTriggered(Channel ch) {
+        return ch instanceof EpollSocketChannel &&
+                ((EpollSocketChannel) ch).config().getEpollMode() == EpollMode.LEVEL_TRIGGERED;
+    }
+
+    /**
+     * Set up forwarding between two channels. Must be called from their event loop, and reading from the source
+     * channel must be suspended, since it will be resumed only after the pending data is written.
+     *
+     * @param src Channel that has sent the pending data.
+     * @param dst Channel to forward pending data to.
+     * @param pending Data that was already read from the source channel.
+     */
+    public static void setup(Channel src, Channel dst, ByteBuf pending) {
+        EpollSocketChannel from = (EpollSocketChannel) src;
+        EpollSocketChannel to = (EpollSocketChannel) dst;
+
+        EndOfStreamHandler fromEnd = new EndOfStreamHandler(to);
+        EndOfStreamHandler toEnd = new EndOfStreamHandler(from);
+
+        from.pipeline().addLast(fromEnd);
+        to.pipeline().addLast(toEnd);
+
+        from.closeFuture().addListener(f -> to.close());
+        to.closeFuture().addListener(f -> from.close());
+
+        splice(to, from, toEnd);
+
+        // Data must not be spliced before pending data is written, since it would bypass the outbound buffer:
+        to.writeAndFlush(pending).addListener(f -> {
+            if (!f.isSuccess()) {
+                failed(from, to, f);
+                return;
+            }
+
+            splice(from, to, fromEnd);
+            from.config().setAutoRead(true);
+        });
+    }
+
+    private static void splice(EpollSocketChannel from, EpollSocketChannel to, EndOfStreamHandler fromEnd) {
+        from.spliceTo(to, Integer.MAX_VALUE).addListener(f -> {
+            if (f.isSuccess()) {
+                // Splice is completed once its length was transferred, start another one for the rest of data unless
+                // the end of stream was reached and the rest is already read by handler:
+                if (!fromEnd.finished && from.isActive() && to.isActive()) {
+                    splice(from, to, fromEnd);
+                }
+            } else if (from.isActive() && to.isActive()) {
+                // Splicing is failed when either of channels is closed, that is not an error:
+                failed(from, to, f);
+            }
+        });
+    }
+
+    private static void failed(Channel from, Channel to, Future<?> f) {
+        LOG.debug("Spliced forwarding {} -> {} has failed", from.remoteAddress(), to.remoteAddress(), f.cause());
+        from.close();
+        to.close();
+    }
+}
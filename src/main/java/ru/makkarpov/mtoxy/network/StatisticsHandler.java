@@ -2,39 +2,113 @@ package ru.makkarpov.mtoxy.network;
 
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelDuplexHandler;
-import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelPromise;
+import ru.makkarpov.mtoxy.stats.ClientStatistics;
 import ru.makkarpov.mtoxy.stats.ConnectionType;
 import ru.makkarpov.mtoxy.stats.StatisticsTracker;
+import ru.makkarpov.mtoxy.stats.TrafficCounters;
 
-@ChannelHandler.Sharable
+import javax.annotation.Nullable;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+/**
+ * Counts connection and its traffic in totals and in counters of its listen address, and of datacenter and peer once
+ * they are known, and in client statistics of its event loop. Must be accessed only from the event loop of client
+ * channel.
+ */
 public class StatisticsHandler extends ChannelDuplexHandler {
     private StatisticsTracker statisticsTracker;
     private ConnectionType connectionType;
+    private TrafficCounters listener;
+
+    @Nullable
+    private TrafficCounters datacenter, peer;
 
-    public StatisticsHandler(StatisticsTracker statisticsTracker, ConnectionType connectionType) {
+    @Nullable
+    private ClientStatistics clients;
+    private InetAddress clientAddress;
+    private long clientKey;
+
+    /**
+     * @param clients Client statistics of the event loop of client channel, if enabled.
+     */
+    public StatisticsHandler(StatisticsTracker statisticsTracker, ConnectionType connectionType,
+                             TrafficCounters listener, @Nullable ClientStatistics clients) {
         this.statisticsTracker = statisticsTracker;
         this.connectionType = connectionType;
+        this.listener = listener;
+        this.clients = clients;
+    }
+
+    /**
+     * Start counting connection for the datacenter requested by client.
+     */
+    public void datacenterSelected(TrafficCounters datacenter) {
+        this.datacenter = datacenter;
+        datacenter.connectionStarted();
+    }
+
+    /**
+     * Start counting connection for the peer address it's forwarded to.
+     */
+    public void peerSelected(@Nullable TrafficCounters peer) {
+        this.peer = peer;
+
+        if (peer != null) {
+            peer.connectionStarted();
+        }
+    }
+
+    /**
+     * Count a failure to connect to upstream for this connection.
+     */
+    public void connectionFailed() {
+        statisticsTracker.connectionFailed(connectionType);
+        listener.connectionFailed();
+
+        if (datacenter != null) {
+            datacenter.connectionFailed();
+        }
     }
 
     @Override
     public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
         super.handlerAdded(ctx);
         statisticsTracker.connectionStarted(connectionType);
+        listener.connectionStarted();
+
+        InetSocketAddress remote = (InetSocketAddress) ctx.channel().remoteAddress();
+        if (clients != null && remote != null && remote.getAddress() != null) {
+            clientAddress = remote.getAddress();
+            clientKey = ClientStatistics.clientKey(clientAddress);
+            clients.connectionStarted(clientKey, clientAddress);
+        } else {
+            clients = null;
+        }
     }
 
     @Override
     public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
         super.handlerRemoved(ctx);
         statisticsTracker.connectionFinished(connectionType);
+        listener.connectionFinished();
+
+        if (datacenter != null) {
+            datacenter.connectionFinished();
+        }
+
+        if (peer != null) {
+            peer.connectionFinished();
+        }
     }
 
     @Override
     public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
         super.write(ctx, msg, promise);
         if (msg instanceof ByteBuf) {
-            statisticsTracker.bytesForwarded(connectionType, ((ByteBuf) msg).readableBytes());
+            bytesForwarded(((ByteBuf) msg).readableBytes());
         }
     }
 
@@ -42,7 +116,24 @@ public class StatisticsHandler extends ChannelDuplexHandler {
     public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
         super.channelRead(ctx, msg);
         if (msg instanceof ByteBuf) {
-            statisticsTracker.bytesForwarded(connectionType, ((ByteBuf) msg).readableBytes());
+            bytesForwarded(((ByteBuf) msg).readableBytes());
+        }
+    }
+
+    private void bytesForwarded(int bytes) {
+        statisticsTracker.bytesForwarded(connectionType, bytes);
+        listener.bytesForwarded(bytes);
+
+        if (datacenter != null) {
+            datacenter.bytesForwarded(bytes);
+        }
+
+        if (peer != null) {
+            peer.bytesForwarded(bytes);
+        }
+
+        if (clients != null) {
+            clients.bytesForwarded(clientKey, clientAddress, bytes);
         }
     }
 
@@ -0,0 +1,310 @@
+package ru.makkarpov.mtoxy.network;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoop;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.util.AttributeKey;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.Promise;
+import io.netty.util.concurrent.ScheduledFuture;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.makkarpov.mtoxy.MTServer;
+import ru.makkarpov.mtoxy.stats.LatencyPhase;
+import ru.makkarpov.mtoxy.stats.LatencyStatistics;
+import ru.makkarpov.mtoxy.stats.TrafficCounters;
+import ru.makkarpov.mtoxy.util.PeerGroup;
+import ru.makkarpov.mtoxy.util.PeerHealth;
+import ru.makkarpov.mtoxy.util.PeerRecord;
+import ru.makkarpov.mtoxy.util.TimingWheel;
+
+import javax.annotation.Nullable;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Establishes a connection to datacenter served by a group of peer addresses. Connection is started to the best
+ * address, and if it did not complete the handshake within race delay, another one is started in parallel to the next
+ * address, and so on. The first connection to complete the handshake wins and all others are closed.
+ *
+ * When all addresses have failed, the race is started again after a jittered exponential backoff, preferring addresses
+ * that were not tried yet, until the configured number of retries is exhausted.
+ *
+ * All state is accessed only from the event loop passed to {@link #connect}.
+ */
+public class UpstreamConnector {
+    private static final Logger LOG = LoggerFactory.getLogger(UpstreamConnector.class);
+
+    /**
+     * Peer address that a connection returned by {@link #connect} was established to.
+     */
+    public static final AttributeKey<PeerRecord> PEER = AttributeKey.valueOf(UpstreamConnector.class, "peer");
+
+    private static class Attempt {
+        private final PeerRecord peer;
+        private final Channel channel;
+        private boolean completed;
+
+        @Nullable
+        private TimingWheel.Timeout timeout;
+
+        private Attempt(PeerRecord peer, Channel channel) {
+            this.peer = peer;
+            this.channel = channel;
+        }
+    }
+
+    private MTServer server;
+    private EventLoop eventLoop;
+    private PeerGroup group;
+    private int datacenterNumber;
+    private List<PeerRecord> candidates;
+    private long raceDelay;
+    private Promise<Channel> promise;
+
+    private List<Attempt> attempts = new ArrayList<>();
+    private int started, failed;
+
+    /**
+     * Addresses that have failed during this connection, in order of failures.
+     */
+    private List<PeerRecord> failedPeers = new ArrayList<>();
+    private int retries;
+
+    @Nullable
+    private ScheduledFuture<?> raceTimer;
+
+    private UpstreamConnector(MTServer server, EventLoop eventLoop, PeerGroup group, int datacenterNumber) {
+        this.server = server;
+        this.eventLoop = eventLoop;
+        this.group = group;
+        this.datacenterNumber = datacenterNumber;
+        this.raceDelay = server.getConfiguration().getPeerRaceDelay();
+        this.promise = eventLoop.newPromise();
+
+        promise.addListener(f -> {
+            if (f.isCancelled()) {
+                cancelled();
+            }
+        });
+
+        selectCandidates();
+    }
+
+    private void selectCandidates() {
+        // Addresses that have already failed are tried after all others:
+        List<PeerRecord> ranked = new ArrayList<>(group.rank());
+        ranked.removeAll(failedPeers);
+        ranked.addAll(failedPeers);
+
+        // Race only among addresses that are in rotation, or try the one to be retried first if there are none:
+        candidates = new ArrayList<>(ranked.size());
+
+        for (PeerRecord pr: ranked) {
+            if (candidates.isEmpty() || (raceDelay > 0 && pr.getHealth().isAvailable())) {
+                candidates.add(pr);
+            }
+        }
+    }
+
+    /**
+     * Start connecting to the datacenter.
+     *
+     * @return Future that will be completed with a connection with Obfuscated2 codec installed. Cancelling it stops
+     * connecting and closes connections that are in progress.
+     */
+    public static Future<Channel> connect(MTServer server, EventLoop eventLoop, PeerGroup group, int datacenterNumber) {
+        UpstreamConnector connector = new UpstreamConnector(server, eventLoop, group, datacenterNumber);
+
+        if (eventLoop.inEventLoop()) {
+            connector.startNext();
+        } else {
+            eventLoop.execute(connector::startNext);
+        }
+
+        return connector.promise;
+    }
+
+    private void startNext() {
+        raceTimer = null;
+
+        if (promise.isDone() || started >= candidates.size()) {
+            return;
+        }
+
+        PeerRecord peer = candidates.get(started++);
+        PeerHealth health = peer.getHealth();
+        Obfuscated2Handshaker handshaker = Obfuscated2Handshaker.fromPeer(peer, datacenterNumber,
+                server.getConfiguration().getCryptoEngine());
+
+        health.connectStarted();
+        LatencyStatistics latency = server.getLatencyStatistics();
+        long start = System.nanoTime();
+
+        ChannelFuture future = server.getUpstreamBootstrap(peer.getAddress(), eventLoop,
+                server.getConfiguration().getDatacenterSocketOptions())
+                .handler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) throws Exception {
+                        ch.pipeline().addLast(handshaker);
+                    }
+                })
+                .connect();
+
+        Attempt attempt = new Attempt(peer, future.channel());
+        attempt.channel.attr(PEER).set(peer);
+        attempts.add(attempt);
+
+        // Closed connection fails the attempt, whether it's still connecting or waiting for the handshake:
+        long connectTimeout = server.getConfiguration().getUpstreamConnectTimeout();
+        if (connectTimeout > 0) {
+            attempt.timeout = server.getTimingWheel(eventLoop).schedule(attempt.channel::close, connectTimeout);
+        }
+
+        future.addListener(f -> {
+            if (future.isSuccess()) {
+                long connected = System.nanoTime();
+                latency.record(LatencyPhase.UPSTREAM_CONNECT, datacenterNumber, peer, connected - start);
+
+                handshaker.getHandshakePromise().addListener(f1 -> {
+                    if (f1.isSuccess()) {
+                        latency.record(LatencyPhase.UPSTREAM_HANDSHAKE, datacenterNumber, peer,
+                                System.nanoTime() - connected);
+                    }
+
+                    eventLoop.execute(() -> attemptCompleted(attempt, f1.cause(), connected - start));
+                });
+            } else {
+                eventLoop.execute(() -> attemptCompleted(attempt, future.cause(), 0));
+            }
+        });
+
+        // Handshake will never complete if connection is closed in the middle of it:
+        attempt.channel.closeFuture().addListener(f ->
+                eventLoop.execute(() -> attemptCompleted(attempt, new ClosedChannelException(), 0)));
+
+        if (started < candidates.size()) {
+            raceTimer = eventLoop.schedule(this::startNext, raceDelay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void peerFailed(PeerRecord peer) {
+        TrafficCounters counters = server.getStatisticsTracker().getPeer(peer);
+        if (counters != null) {
+            counters.connectionFailed();
+        }
+    }
+
+    /**
+     * Decide the outcome of attempt, only the first call for every attempt counts.
+     *
+     * @param cause Failure of connection or handshake, or null if handshake was completed.
+     * @param rtt Time it took to establish TCP connection, in nanoseconds.
+     */
+    private void attemptCompleted(Attempt attempt, @Nullable Throwable cause, long rtt) {
+        if (attempt.completed) {
+            return;
+        }
+
+        attempt.completed = true;
+
+        if (attempt.timeout != null) {
+            attempt.timeout.cancel();
+        }
+
+        PeerHealth health = attempt.peer.getHealth();
+
+        // Connections closed by us after the race was decided are not failures of the peer:
+        if (promise.isDone()) {
+            health.connectAborted();
+            attempt.channel.close();
+            return;
+        }
+
+        // Address is healthy only if it has completed the handshake, not just accepted the connection:
+        if (cause == null) {
+            health.connectSucceeded(rtt);
+
+            if (raceTimer != null) {
+                raceTimer.cancel(false);
+            }
+
+            // Complete the promise first so that closed attempts will not be counted as failures:
+            promise.setSuccess(attempt.channel);
+
+            for (Attempt a: attempts) {
+                if (a != attempt) {
+                    a.channel.close();
+                }
+            }
+
+            return;
+        }
+
+        health.connectFailed();
+        peerFailed(attempt.peer);
+
+        attempt.channel.close();
+        failed++;
+
+        failedPeers.remove(attempt.peer);
+        failedPeers.add(attempt.peer);
+
+        if (failed == candidates.size()) {
+            if (retries == server.getConfiguration().getUpstreamConnectRetries()) {
+                promise.setFailure(cause);
+                return;
+            }
+
+            long delay = backoff(retries++);
+            LOG.debug("Failed to connect to datacenter {}, retrying in {} ms", datacenterNumber, delay, cause);
+            eventLoop.schedule(this::retry, delay, TimeUnit.MILLISECONDS);
+        } else if (failed == started) {
+            // Nothing is in progress, don't wait for the race delay:
+            LOG.debug("Failed to connect to peer {}, trying next one", attempt.peer.getAddress(), cause);
+
+            if (raceTimer != null) {
+                raceTimer.cancel(false);
+            }
+
+            startNext();
+        }
+    }
+
+    /**
+     * @return Delay before specified retry: random value between a half and a whole of exponentially growing backoff,
+     * so that clients that have failed at once don't retry at once as well.
+     */
+    private long backoff(int retry) {
+        long max = server.getConfiguration().getUpstreamRetryBackoff() << Math.min(retry, 16);
+        return max / 2 + ThreadLocalRandom.current().nextLong(max / 2 + 1);
+    }
+
+    private void cancelled() {
+        if (raceTimer != null) {
+            raceTimer.cancel(false);
+        }
+
+        for (Attempt a: attempts) {
+            a.channel.close();
+        }
+    }
+
+    private void retry() {
+        if (promise.isDone()) {
+            return;
+        }
+
+        attempts.clear();
+        started = 0;
+        failed = 0;
+
+        selectCandidates();
+        startNext();
+    }
+}
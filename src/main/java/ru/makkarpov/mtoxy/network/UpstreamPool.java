@@ -0,0 +1,270 @@
+package ru.makkarpov.mtoxy.network;
+
+import io.netty.channel.*;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.util.ReferenceCountUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.makkarpov.mtoxy.MTServer;
+import ru.makkarpov.mtoxy.stats.LatencyPhase;
+import ru.makkarpov.mtoxy.stats.LatencyStatistics;
+import ru.makkarpov.mtoxy.stats.TrafficCounters;
+import ru.makkarpov.mtoxy.util.Configuration;
+import ru.makkarpov.mtoxy.util.PeerHealth;
+import ru.makkarpov.mtoxy.util.PeerRecord;
+import ru.makkarpov.mtoxy.util.TimingWheel;
+
+import javax.annotation.Nullable;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pool of idle upstream connections with already completed Obfuscated2 handshake, so clients don't have to wait for a
+ * connection to datacenter to be established. Every worker event loop has its own pool which is accessed only from
+ * that loop, and pooled connections are registered on the same loop.
+ */
+public class UpstreamPool {
+    private static final Logger LOG = LoggerFactory.getLogger(UpstreamPool.class);
+
+    /**
+     * Pools that had no clients for this number of idle timeouts will not be refilled anymore.
+     */
+    private static final int EXPIRATION_FACTOR = 10;
+
+    private static class Key {
+        private final PeerRecord peer;
+        private final int datacenterNumber;
+
+        private Key(PeerRecord peer, int datacenterNumber) {
+            this.peer = peer;
+            this.datacenterNumber = datacenterNumber;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+
+            Key k = (Key) o;
+            return peer == k.peer && datacenterNumber == k.datacenterNumber;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(peer) * 31 + datacenterNumber;
+        }
+    }
+
+    private static class Entry {
+        private final Key key;
+        private final ArrayDeque<IdleGuard> idle = new ArrayDeque<>();
+        private int pending;
+        private long lastAcquired;
+
+        private Entry(Key key) {
+            this.key = key;
+        }
+    }
+
+    /**
+     * Handler that sits at the end of pipeline of an idle connection. Datacenters should not send anything before
+     * they will receive a request, so any incoming data or closed connection make it unusable.
+     */
+    private class IdleGuard extends ChannelInboundHandlerAdapter {
+        private final Entry entry;
+        private final Channel channel;
+        private final long idleSince;
+
+        private IdleGuard(Entry entry, Channel channel, long idleSince) {
+            this.entry = entry;
+            this.channel = channel;
+            this.idleSince = idleSince;
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+            ReferenceCountUtil.release(msg);
+            ctx.close();
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            entry.idle.remove(this);
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+            LOG.debug("Exception caught in idle upstream connection to {}", entry.key.peer.getAddress(), cause);
+            ctx.close();
+        }
+    }
+
+    private MTServer server;
+    private EventLoop eventLoop;
+    private int size;
+    private long maxIdleTime;
+    private Map<Key, Entry> entries = new HashMap<>();
+
+    public UpstreamPool(MTServer server, EventLoop eventLoop) {
+        Configuration cfg = server.getConfiguration();
+
+        this.server = server;
+        this.eventLoop = eventLoop;
+        this.size = cfg.getUpstreamPoolSize();
+        this.maxIdleTime = cfg.getUpstreamPoolIdleTime();
+
+        if (size > 0) {
+            long interval = Math.max(1, maxIdleTime / 2);
+            eventLoop.scheduleAtFixedRate(this::evictIdle, interval, interval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Take an idle connection to specified peer and datacenter, starting a background refill of the pool. Must be
+     * called from the event loop of this pool.
+     *
+     * @return A connection with Obfuscated2 codec installed, or null if there are no idle connections.
+     */
+    @Nullable
+    public Channel acquire(PeerRecord peer, int datacenterNumber) {
+        if (size == 0) {
+            return null;
+        }
+
+        Key key = new Key(peer, datacenterNumber);
+        Entry entry = entries.get(key);
+
+        if (entry == null) {
+            entry = new Entry(key);
+            entries.put(key, entry);
+        }
+
+        entry.lastAcquired = System.currentTimeMillis();
+
+        Channel ch = null;
+        IdleGuard guard;
+
+        while (ch == null && (guard = entry.idle.pollFirst()) != null) {
+            if (guard.channel.isActive()) {
+                guard.channel.pipeline().remove(guard);
+                ch = guard.channel;
+            }
+        }
+
+        refill(entry);
+        return ch;
+    }
+
+    private void refill(Entry entry) {
+        while (entry.idle.size() + entry.pending < size) {
+            entry.pending++;
+            connect(entry);
+        }
+    }
+
+    private void connect(Entry entry) {
+        Obfuscated2Handshaker handshaker = Obfuscated2Handshaker.fromPeer(entry.key.peer,
+                entry.key.datacenterNumber, server.getConfiguration().getCryptoEngine());
+
+        PeerHealth health = entry.key.peer.getHealth();
+        health.connectStarted();
+        LatencyStatistics latency = server.getLatencyStatistics();
+        long start = System.nanoTime();
+
+        ChannelFuture future = server.getBootstrap(entry.key.peer.getAddress(), eventLoop,
+                server.getConfiguration().getDatacenterSocketOptions())
+                .handler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) throws Exception {
+                        ch.pipeline().addLast(handshaker);
+                    }
+                })
+                .connect();
+
+        long connectTimeout = server.getConfiguration().getUpstreamConnectTimeout();
+        TimingWheel.Timeout timeout = (connectTimeout == 0) ? null :
+                server.getTimingWheel(eventLoop).schedule(future.channel()::close, connectTimeout);
+
+        future.addListener(f -> {
+            if (timeout != null) {
+                timeout.cancel();
+            }
+
+            if (!future.isSuccess()) {
+                peerFailed(entry.key.peer);
+                LOG.debug("Failed to open pooled connection to {}", entry.key.peer.getAddress(), future.cause());
+                entry.pending--;
+                return;
+            }
+
+            long connected = System.nanoTime();
+            // Clients don't wait for these, so they are kept apart from connections made for clients:
+            latency.record(LatencyPhase.POOL_CONNECT, entry.key.datacenterNumber, entry.key.peer,
+                    connected - start);
+
+            handshaker.getHandshakePromise().addListener(f1 -> {
+                entry.pending--;
+
+                // Address is healthy only if it has completed the handshake, not just accepted the connection:
+                if (f1.isSuccess()) {
+                    health.connectSucceeded(connected - start);
+                    latency.record(LatencyPhase.POOL_HANDSHAKE, entry.key.datacenterNumber, entry.key.peer,
+                            System.nanoTime() - connected);
+                } else {
+                    peerFailed(entry.key.peer);
+                }
+
+                Channel ch = future.channel();
+                if (!f1.isSuccess() || !ch.isActive()) {
+                    ch.close();
+                    return;
+                }
+
+                IdleGuard guard = new IdleGuard(entry, ch, System.currentTimeMillis());
+                ch.pipeline().addLast(guard);
+                entry.idle.addLast(guard);
+            });
+        });
+    }
+
+    private void peerFailed(PeerRecord peer) {
+        peer.getHealth().connectFailed();
+
+        TrafficCounters counters = server.getStatisticsTracker().getPeer(peer);
+        if (counters != null) {
+            counters.connectionFailed();
+        }
+    }
+
+    private void evictIdle() {
+        long now = System.currentTimeMillis();
+        Iterator<Entry> it = entries.values().iterator();
+
+        while (it.hasNext()) {
+            Entry entry = it.next();
+
+            // Oldest connections are always at the head of the queue:
+            IdleGuard guard;
+            while ((guard = entry.idle.peekFirst()) != null && now - guard.idleSince >= maxIdleTime) {
+                entry.idle.pollFirst();
+                guard.channel.close();
+            }
+
+            if (now - entry.lastAcquired >= maxIdleTime * EXPIRATION_FACTOR) {
+                while ((guard = entry.idle.pollFirst()) != null) {
+                    guard.channel.close();
+                }
+
+                if (entry.pending == 0) {
+                    it.remove();
+                }
+            } else {
+                refill(entry);
+            }
+        }
+    }
+}
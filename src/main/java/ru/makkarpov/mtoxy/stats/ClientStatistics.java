@@ -0,0 +1,124 @@
+package ru.makkarpov.mtoxy.stats;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+
+/**
+ * Clients with most traffic and connections, and the number of distinct client addresses, in memory that doesn't
+ * depend on the number of clients. IPv4 clients are counted by address, and IPv6 ones by /64 subnet, since a single
+ * client usually owns the whole subnet.
+ *
+ * Every worker event loop has its own instance that is accessed only from that loop, and reports merge them with
+ * {@link #drainTo}.
+ */
+public class ClientStatistics {
+    public static final int IPV6_PREFIX_LENGTH = 64;
+
+    private final SpaceSaving bytes;
+    private final SpaceSaving connections;
+    private final HyperLogLog addresses = new HyperLogLog();
+
+    /**
+     * @param size Number of clients to track for traffic and for connections.
+     */
+    public ClientStatistics(int size) {
+        bytes = new SpaceSaving(size);
+        connections = new SpaceSaving(size);
+    }
+
+    private static long mix(long x) {
+        x ^= x >>> 33;
+        x *= 0xff51afd7ed558ccdL;
+        x ^= x >>> 33;
+        x *= 0xc4ceb9fe1a85ec53L;
+        x ^= x >>> 33;
+        return x;
+    }
+
+    private static long readLong(byte[] b, int offset) {
+        long r = 0;
+        for (int i = 0; i < 8; i++) {
+            r = (r << 8) | (b[offset + i] & 0xFF);
+        }
+
+        return r;
+    }
+
+    /**
+     * @return Key of the client with specified address: IPv4 address or IPv6 subnet.
+     */
+    public static long clientKey(InetAddress address) {
+        byte[] b = address.getAddress();
+
+        if (b.length == 4) {
+            // No global IPv6 subnet starts with zeros, so these will not clash:
+            return ((b[0] & 0xFF) << 24 | (b[1] & 0xFF) << 16 | (b[2] & 0xFF) << 8 | (b[3] & 0xFF)) & 0xFFFFFFFFL;
+        }
+
+        return readLong(b, 0);
+    }
+
+    /**
+     * @return Client address or subnet for display.
+     */
+    public static String formatClient(InetAddress address) {
+        if (address instanceof Inet4Address) {
+            return address.getHostAddress();
+        }
+
+        byte[] b = Arrays.copyOf(Arrays.copyOf(address.getAddress(), IPV6_PREFIX_LENGTH / 8), 16);
+        try {
+            return InetAddress.getByAddress(b).getHostAddress() + "/" + IPV6_PREFIX_LENGTH;
+        } catch (UnknownHostException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Count a new connection from client.
+     *
+     * @param key Client key as returned by {@link #clientKey}.
+     */
+    public void connectionStarted(long key, InetAddress address) {
+        connections.add(key, address, 1);
+
+        // Unlike the key, the hash covers whole IPv6 address:
+        byte[] b = address.getAddress();
+        addresses.add((b.length == 4) ? mix(key) : mix(readLong(b, 0) ^ mix(readLong(b, 8))));
+    }
+
+    public void bytesForwarded(long key, InetAddress address, long count) {
+        bytes.add(key, address, count);
+    }
+
+    /**
+     * Add everything counted to another instance and start counting anew. Must be called from event loop of this
+     * instance, while other instance should not be accessed concurrently.
+     */
+    public void drainTo(ClientStatistics other) {
+        bytes.addTo(other.bytes);
+        connections.addTo(other.connections);
+        other.addresses.addAll(addresses);
+
+        bytes.clear();
+        connections.clear();
+        addresses.clear();
+    }
+
+    public SpaceSaving getBytes() {
+        return bytes;
+    }
+
+    public SpaceSaving getConnections() {
+        return connections;
+    }
+
+    /**
+     * @return Estimated number of distinct client addresses.
+     */
+    public long getUniqueAddresses() {
+        return addresses.estimate();
+    }
+}
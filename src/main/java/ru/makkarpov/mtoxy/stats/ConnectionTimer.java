@@ -0,0 +1,45 @@
+package ru.makkarpov.mtoxy.stats;
+
+/**
+ * Records setup phases of a single client connection, measured from the moment it was accepted.
+ */
+public class ConnectionTimer {
+    private final LatencyStatistics statistics;
+    private final long acceptTime;
+
+    private boolean hasDatacenter;
+    private int datacenterNumber;
+
+    public ConnectionTimer(LatencyStatistics statistics) {
+        this.statistics = statistics;
+        this.acceptTime = System.nanoTime();
+    }
+
+    public void protocolDetected() {
+        statistics.record(LatencyPhase.DETECTION, System.nanoTime() - acceptTime);
+    }
+
+    /**
+     * @param datacenterNumber Datacenter requested by client, following phases will be recorded for it as well.
+     */
+    public void handshakeCompleted(int datacenterNumber) {
+        this.hasDatacenter = true;
+        this.datacenterNumber = datacenterNumber;
+
+        statistics.record(LatencyPhase.HANDSHAKE, datacenterNumber, System.nanoTime() - acceptTime);
+    }
+
+    /**
+     * Record the first data forwarded in some direction, either {@link LatencyPhase#FIRST_BYTE_UPSTREAM} or
+     * {@link LatencyPhase#FIRST_BYTE_CLIENT}.
+     */
+    public void firstByteForwarded(LatencyPhase phase) {
+        long elapsed = System.nanoTime() - acceptTime;
+
+        if (hasDatacenter) {
+            statistics.record(phase, datacenterNumber, elapsed);
+        } else {
+            statistics.record(phase, elapsed);
+        }
+    }
+}
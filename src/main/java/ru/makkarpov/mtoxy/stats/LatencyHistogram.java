@@ -0,0 +1,90 @@
+package ru.makkarpov.mtoxy.stats;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of durations with log-linear buckets, like in HdrHistogram: every power of two is split into 16
+ * linear sub-buckets, so any recorded value is reported with relative error below 1/16. Values are kept in
+ * microseconds, from zero to about 25 days.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_EXPONENT = 40;
+    private static final long MAX_VALUE = (1L << (MAX_EXPONENT + 1)) - 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray((MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+
+    private static int index(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * @return Highest value that falls into the bucket.
+     */
+    private static long upperBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+
+        int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long subBucket = index % SUB_BUCKETS;
+        return ((SUB_BUCKETS + subBucket + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+
+    public void record(long nanos) {
+        long micros = Math.min(Math.max(nanos / 1000, 0), MAX_VALUE);
+
+        counts.incrementAndGet(index(micros));
+        count.increment();
+        sum.add(micros);
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * @return Sum of all recorded values in microseconds.
+     */
+    public long getSum() {
+        return sum.sum();
+    }
+
+    /**
+     * Compute several quantiles in a single pass over the buckets.
+     *
+     * @param quantiles Quantiles in ascending order, e.g. 0.5 and 0.99.
+     * @param result Array to store values in microseconds to, 0 for all of them if nothing was recorded.
+     */
+    public void quantiles(double[] quantiles, long[] result) {
+        long total = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            total += counts.get(i);
+        }
+
+        int q = 0;
+        long seen = 0;
+
+        for (int i = 0; i < counts.length() && q < quantiles.length; i++) {
+            seen += counts.get(i);
+
+            while (q < quantiles.length && seen > 0 && seen >= Math.ceil(quantiles[q] * total)) {
+                result[q++] = upperBound(i);
+            }
+        }
+
+        while (q < quantiles.length) {
+            result[q++] = 0;
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package ru.makkarpov.mtoxy.stats;
+
+/**
+ * Phases of connection setup which durations are tracked.
+ */
+public enum LatencyPhase {
+    /**
+     * From accepting a connection until its protocol is detected by the first received data.
+     */
+    DETECTION,
+
+    /**
+     * From accepting a connection until client handshake is completed.
+     */
+    HANDSHAKE,
+
+    /**
+     * Establishing TCP connection to peer for a client.
+     */
+    UPSTREAM_CONNECT,
+
+    /**
+     * From establishing connection to peer until Obfuscated2 handshake is completed, for a client.
+     */
+    UPSTREAM_HANDSHAKE,
+
+    /**
+     * Same as UPSTREAM_CONNECT, but for connections opened in advance by the upstream pool, which clients don't wait
+     * for.
+     */
+    POOL_CONNECT,
+
+    /**
+     * Same as UPSTREAM_HANDSHAKE, but for connections opened in advance by the upstream pool.
+     */
+    POOL_HANDSHAKE,
+
+    /**
+     * From accepting a connection until the first data is forwarded from client to peer.
+     */
+    FIRST_BYTE_UPSTREAM,
+
+    /**
+     * From accepting a connection until the first data is forwarded from peer to client.
+     */
+    FIRST_BYTE_CLIENT
+}
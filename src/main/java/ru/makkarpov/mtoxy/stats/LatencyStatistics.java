@@ -0,0 +1,116 @@
+package ru.makkarpov.mtoxy.stats;
+
+import ru.makkarpov.mtoxy.util.Configuration;
+import ru.makkarpov.mtoxy.util.PeerGroup;
+import ru.makkarpov.mtoxy.util.PeerRecord;
+
+import javax.annotation.Nullable;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Histograms of connection setup phases: in total, for each datacenter and for each peer address. All histograms are
+ * created at startup, so recording never allocates or locks anything.
+ *
+ * Datacenters are identified by the configured peer group that serves them, separately for regular and media ones.
+ */
+@Singleton
+public class LatencyStatistics {
+    private static final Set<LatencyPhase> DATACENTER_PHASES = EnumSet.of(LatencyPhase.HANDSHAKE,
+            LatencyPhase.UPSTREAM_CONNECT, LatencyPhase.UPSTREAM_HANDSHAKE, LatencyPhase.POOL_CONNECT,
+            LatencyPhase.POOL_HANDSHAKE, LatencyPhase.FIRST_BYTE_UPSTREAM, LatencyPhase.FIRST_BYTE_CLIENT);
+
+    private static final Set<LatencyPhase> PEER_PHASES = EnumSet.of(LatencyPhase.UPSTREAM_CONNECT,
+            LatencyPhase.UPSTREAM_HANDSHAKE, LatencyPhase.POOL_CONNECT, LatencyPhase.POOL_HANDSHAKE);
+
+    private final Configuration cfg;
+    private final LatencyHistogram[] total;
+    private final LatencyHistogram[][] datacenters;
+    private final List<PeerRecord> peers = new ArrayList<>();
+    private final Map<PeerRecord, LatencyHistogram[]> peerHistograms = new IdentityHashMap<>();
+
+    @Inject
+    public LatencyStatistics(Configuration cfg) {
+        this.cfg = cfg;
+        total = createHistograms(EnumSet.allOf(LatencyPhase.class));
+
+        datacenters = new LatencyHistogram[cfg.getDatacenterCount()][];
+        for (int i = 0; i < datacenters.length; i++) {
+            datacenters[i] = createHistograms(DATACENTER_PHASES);
+        }
+
+        for (PeerGroup pg: cfg.getPeers()) {
+            for (PeerRecord pr: pg.getRecords()) {
+                peers.add(pr);
+                peerHistograms.put(pr, createHistograms(PEER_PHASES));
+            }
+        }
+    }
+
+    private static LatencyHistogram[] createHistograms(Set<LatencyPhase> phases) {
+        LatencyHistogram[] r = new LatencyHistogram[LatencyPhase.values().length];
+        for (LatencyPhase p: phases) {
+            r[p.ordinal()] = new LatencyHistogram();
+        }
+
+        return r;
+    }
+
+    public int getDatacenterCount() {
+        return datacenters.length;
+    }
+
+    public List<PeerRecord> getPeers() {
+        return Collections.unmodifiableList(peers);
+    }
+
+    public void record(LatencyPhase phase, long nanos) {
+        total[phase.ordinal()].record(nanos);
+    }
+
+    public void record(LatencyPhase phase, int datacenterNumber, long nanos) {
+        record(phase, nanos);
+
+        LatencyHistogram h = datacenters[cfg.getDatacenterIndex(datacenterNumber)][phase.ordinal()];
+        if (h != null) {
+            h.record(nanos);
+        }
+    }
+
+    public void record(LatencyPhase phase, int datacenterNumber, PeerRecord peer, long nanos) {
+        record(phase, datacenterNumber, nanos);
+
+        LatencyHistogram[] histograms = peerHistograms.get(peer);
+        if (histograms != null && histograms[phase.ordinal()] != null) {
+            histograms[phase.ordinal()].record(nanos);
+        }
+    }
+
+    public LatencyHistogram getTotal(LatencyPhase phase) {
+        return total[phase.ordinal()];
+    }
+
+    /**
+     * @return Histogram for datacenter with specified index (see {@link Configuration#getDatacenterIndex}), or null if
+     * phase is not tracked for datacenters.
+     */
+    @Nullable
+    public LatencyHistogram getDatacenter(int index, LatencyPhase phase) {
+        return datacenters[index][phase.ordinal()];
+    }
+
+    /**
+     * @return Histogram for the peer address, or null if phase is not tracked for peers.
+     */
+    @Nullable
+    public LatencyHistogram getPeer(PeerRecord peer, LatencyPhase phase) {
+        return peerHistograms.get(peer)[phase.ordinal()];
+    }
+}
@@ -0,0 +1,83 @@
+package ru.makkarpov.mtoxy.stats;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+
+/**
+ * Accept queue counters of the kernel from {@code /proc/net/netstat}. They are shared by all listening sockets in the
+ * network namespace, not only by the ones of mtoxy.
+ */
+public class ListenQueueStatistics {
+    private static final Path NETSTAT = Paths.get("/proc/net/netstat");
+
+    private final long overflows;
+    private final long drops;
+
+    private ListenQueueStatistics(long overflows, long drops) {
+        this.overflows = overflows;
+        this.drops = drops;
+    }
+
+    /**
+     * @return Current counter values, or null if they are not available on this system.
+     */
+    @Nullable
+    public static ListenQueueStatistics read() {
+        List<String> lines;
+
+        try {
+            lines = Files.readAllLines(NETSTAT);
+        } catch (IOException | SecurityException e) {
+            return null;
+        }
+
+        // File consists of pairs of lines: one with names of counters and other with their values.
+        for (int i = 0; i + 1 < lines.size(); i += 2) {
+            String[] names = lines.get(i).split(" ");
+            String[] values = lines.get(i + 1).split(" ");
+
+            if (!names[0].equals("TcpExt:") || names.length != values.length) {
+                continue;
+            }
+
+            long overflows = -1, drops = -1;
+
+            for (int j = 1; j < names.length; j++) {
+                if (names[j].equals("ListenOverflows")) {
+                    overflows = Long.parseLong(values[j]);
+                } else if (names[j].equals("ListenDrops")) {
+                    drops = Long.parseLong(values[j]);
+                }
+            }
+
+            return (overflows < 0 || drops < 0) ? null : new ListenQueueStatistics(overflows, drops);
+        }
+
+        return null;
+    }
+
+    /**
+     * @return Number of times a connection was completed while accept queue of a listening socket was full.
+     */
+    public long getOverflows() {
+        return overflows;
+    }
+
+    /**
+     * @return Number of connection attempts dropped by listening sockets, including ones counted as overflows.
+     */
+    public long getDrops() {
+        return drops;
+    }
+
+    /**
+     * @return Counters that were incremented since the {@code base} values.
+     */
+    public ListenQueueStatistics since(ListenQueueStatistics base) {
+        return new ListenQueueStatistics(overflows - base.overflows, drops - base.drops);
+    }
+}
@@ -0,0 +1,448 @@
+package ru.makkarpov.mtoxy.stats;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufAllocatorMetric;
+import io.netty.buffer.ByteBufAllocatorMetricProvider;
+import io.netty.buffer.PooledByteBufAllocatorMetric;
+import io.netty.channel.*;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.handler.codec.http.*;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.SingleThreadEventExecutor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.makkarpov.mtoxy.MTServer;
+import ru.makkarpov.mtoxy.util.Configuration;
+import ru.makkarpov.mtoxy.util.PeerGroup;
+import ru.makkarpov.mtoxy.util.PeerRecord;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Serves metrics in Prometheus text format over HTTP on a dedicated event loop, so that scrapes never delay proxy
+ * traffic. Metrics are rendered on every scrape straight from the counters into a pooled buffer, without taking any
+ * locks of the proxy and without waiting for its event loops.
+ */
+@Singleton
+public class MetricsServer {
+    private static final Logger LOG = LoggerFactory.getLogger(MetricsServer.class);
+
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+    private static final String PATH = "/metrics";
+    private static final double[] QUANTILES = { 0.5, 0.99, 0.999 };
+
+    /**
+     * Interval at which every worker event loop publishes the length of its task queue, in milliseconds.
+     */
+    private static final long PENDING_TASKS_INTERVAL = 1000;
+
+    private Configuration cfg;
+    private MTServer server;
+    private StatisticsTracker tracker;
+    private LatencyStatistics latency;
+
+    private String[] typeLabels;
+
+    /**
+     * Traffic counters and their labels for every datacenter, peer address and listen address.
+     */
+    private TrafficCounters[] datacenterCounters, peerCounters, listenerCounters;
+    private String[] datacenterLabels, peerCounterLabels, listenerLabels;
+
+    /**
+     * Labels of latency summaries: for every phase and datacenter or peer, labels of _sum and _count samples followed
+     * by labels of every quantile.
+     */
+    private String[][] totalLatencyLabels;
+    private String[][][] datacenterLatencyLabels, peerLatencyLabels;
+
+    private List<PeerRecord> peers = new ArrayList<>();
+    private List<String> peerLabels = new ArrayList<>();
+    private List<SingleThreadEventExecutor> eventLoops = new ArrayList<>();
+    private List<String> eventLoopLabels = new ArrayList<>();
+
+    /**
+     * Task queue length of every worker event loop, as last published by the loop itself. Querying it from another
+     * thread would submit a task to the loop and wait for it.
+     */
+    private AtomicLongArray pendingTasks;
+
+    private List<GarbageCollectorMXBean> collectors = ManagementFactory.getGarbageCollectorMXBeans();
+    private List<String> collectorLabels = new ArrayList<>();
+    private List<BufferPoolMXBean> bufferPools = ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class);
+    private List<String> bufferPoolLabels = new ArrayList<>();
+    private ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    /**
+     * Size of the last rendered response, used as initial capacity for the next one.
+     */
+    private volatile int sizeHint = 4096;
+
+    @Inject
+    public MetricsServer(Configuration cfg, MTServer server, StatisticsTracker tracker, LatencyStatistics latency) {
+        this.cfg = cfg;
+        this.server = server;
+        this.tracker = tracker;
+        this.latency = latency;
+
+        typeLabels = new String[ConnectionType.values().length];
+        for (ConnectionType t: ConnectionType.values()) {
+            typeLabels[t.ordinal()] = "type=\"" + t.name().toLowerCase() + "\"";
+        }
+
+        for (PeerGroup pg: cfg.getPeers()) {
+            for (PeerRecord pr: pg.getRecords()) {
+                peers.add(pr);
+                peerLabels.add("peer=\"" + PrometheusWriter.escape(pr.getAddress().getHostString() + ":" +
+                        pr.getAddress().getPort()) + "\"");
+            }
+        }
+
+        int i = 0;
+        for (EventExecutor e: server.getWorkerGroup()) {
+            if (e instanceof SingleThreadEventExecutor) {
+                eventLoops.add((SingleThreadEventExecutor) e);
+                eventLoopLabels.add("loop=\"" + (i++) + "\"");
+            }
+        }
+
+        pendingTasks = new AtomicLongArray(eventLoops.size());
+
+        for (GarbageCollectorMXBean gc: collectors) {
+            collectorLabels.add("gc=\"" + PrometheusWriter.escape(gc.getName()) + "\"");
+        }
+
+        for (BufferPoolMXBean bp: bufferPools) {
+            bufferPoolLabels.add("pool=\"" + PrometheusWriter.escape(bp.getName()) + "\"");
+        }
+
+        datacenterCounters = new TrafficCounters[tracker.getDatacenterCount()];
+        datacenterLabels = new String[datacenterCounters.length];
+        for (int j = 0; j < datacenterCounters.length; j++) {
+            datacenterCounters[j] = tracker.getDatacenter(j);
+            datacenterLabels[j] = "dc=\"" + cfg.getDatacenterNumber(j) + "\"";
+        }
+
+        peerCounters = new TrafficCounters[peers.size()];
+        peerCounterLabels = peerLabels.toArray(new String[0]);
+        for (int j = 0; j < peerCounters.length; j++) {
+            peerCounters[j] = tracker.getPeer(peers.get(j));
+        }
+
+        listenerCounters = new TrafficCounters[tracker.getListenerCount()];
+        listenerLabels = new String[listenerCounters.length];
+        for (int j = 0; j < listenerCounters.length; j++) {
+            InetSocketAddress a = cfg.getListenAddresses().get(j);
+            listenerCounters[j] = tracker.getListener(j);
+            listenerLabels[j] = "listener=\"" + PrometheusWriter.escape(a.getHostString() + ":" + a.getPort()) + "\"";
+        }
+
+        int phases = LatencyPhase.values().length;
+        totalLatencyLabels = new String[phases][];
+        datacenterLatencyLabels = new String[phases][latency.getDatacenterCount()][];
+        peerLatencyLabels = new String[phases][latency.getPeers().size()][];
+
+        for (LatencyPhase p: LatencyPhase.values()) {
+            String phase = "phase=\"" + p.name().toLowerCase() + "\"";
+            totalLatencyLabels[p.ordinal()] = summaryLabels(phase);
+
+            for (int dc = 0; dc < latency.getDatacenterCount(); dc++) {
+                datacenterLatencyLabels[p.ordinal()][dc] = summaryLabels(phase + ",dc=\"" +
+                        cfg.getDatacenterNumber(dc) + "\"");
+            }
+
+            for (int j = 0; j < peers.size(); j++) {
+                peerLatencyLabels[p.ordinal()][j] = summaryLabels(phase + "," + peerLabels.get(j));
+            }
+        }
+    }
+
+    private static String[] summaryLabels(String labels) {
+        String[] r = new String[QUANTILES.length + 1];
+        r[0] = labels;
+
+        for (int i = 0; i < QUANTILES.length; i++) {
+            r[i + 1] = labels + ",quantile=\"" + QUANTILES[i] + "\"";
+        }
+
+        return r;
+    }
+
+    public void start() {
+        if (cfg.getMetricsListen() == null) {
+            return;
+        }
+
+        for (int i = 0; i < eventLoops.size(); i++) {
+            SingleThreadEventExecutor e = eventLoops.get(i);
+            int index = i;
+
+            e.scheduleAtFixedRate(() -> pendingTasks.lazySet(index, e.pendingTasks()), PENDING_TASKS_INTERVAL,
+                    PENDING_TASKS_INTERVAL, TimeUnit.MILLISECONDS);
+        }
+
+        // A single thread is enough to serve scrapes, and it will not wait for busy workers or make them wait:
+        EventLoopGroup group = cfg.getNetworkTransport().createEventLoopGroup(1);
+
+        new ServerBootstrap()
+                .group(group)
+                .channel(cfg.getNetworkTransport().serverSocketChannel)
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) throws Exception {
+                        ch.pipeline().addLast(new HttpServerCodec(), new MetricsHandler());
+                    }
+                })
+                .bind(cfg.getMetricsListen()).syncUninterruptibly();
+
+        LOG.info("Metrics are served on http://{}:{}{}", cfg.getMetricsListen().getHostString(),
+                cfg.getMetricsListen().getPort(), PATH);
+    }
+
+    private class MetricsHandler extends SimpleChannelInboundHandler<HttpObject> {
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, HttpObject msg) throws Exception {
+            // Request bodies are not expected and are ignored:
+            if (!(msg instanceof HttpRequest)) {
+                return;
+            }
+
+            HttpRequest request = (HttpRequest) msg;
+            String uri = request.uri();
+            int query = uri.indexOf('?');
+            String path = (query < 0) ? uri : uri.substring(0, query);
+
+            FullHttpResponse response;
+            if (!request.method().equals(HttpMethod.GET)) {
+                response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.METHOD_NOT_ALLOWED);
+            } else if (!path.equals(PATH) && !path.equals("/")) {
+                response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.NOT_FOUND);
+            } else {
+                ByteBuf buf = ctx.alloc().buffer(sizeHint);
+                writeMetrics(new PrometheusWriter(buf));
+                sizeHint = buf.readableBytes();
+
+                response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK, buf);
+                response.headers().set(HttpHeaderNames.CONTENT_TYPE, CONTENT_TYPE);
+            }
+
+            boolean keepAlive = HttpUtil.isKeepAlive(request);
+            HttpUtil.setContentLength(response, response.content().readableBytes());
+            HttpUtil.setKeepAlive(response, keepAlive);
+
+            ChannelFuture f = ctx.writeAndFlush(response);
+            if (!keepAlive) {
+                f.addListener(ChannelFutureListener.CLOSE);
+            }
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+            LOG.debug("Exception caught in metrics connection from {}", ctx.channel().remoteAddress(), cause);
+            ctx.close();
+        }
+    }
+
+    private void writeMetrics(PrometheusWriter w) {
+        writeTraffic(w);
+        writePeers(w);
+        writeBreakdown(w, "datacenter", datacenterCounters, datacenterLabels);
+        writeBreakdown(w, "peer", peerCounters, peerCounterLabels);
+        writeBreakdown(w, "listener", listenerCounters, listenerLabels);
+        writeLatency(w);
+        writeRuntime(w);
+    }
+
+    private void writeLatency(PrometheusWriter w) {
+        long[] values = new long[QUANTILES.length];
+
+        w.header("mtoxy_latency_seconds", "summary", "Duration of connection setup phases.");
+        for (LatencyPhase p: LatencyPhase.values()) {
+            writeSummary(w, "mtoxy_latency_seconds", latency.getTotal(p), totalLatencyLabels[p.ordinal()], values);
+        }
+
+        w.header("mtoxy_datacenter_latency_seconds", "summary", "Duration of connection setup phases by datacenter.");
+        for (LatencyPhase p: LatencyPhase.values()) {
+            for (int dc = 0; dc < latency.getDatacenterCount(); dc++) {
+                LatencyHistogram h = latency.getDatacenter(dc, p);
+                if (h != null) {
+                    writeSummary(w, "mtoxy_datacenter_latency_seconds", h, datacenterLatencyLabels[p.ordinal()][dc],
+                            values);
+                }
+            }
+        }
+
+        w.header("mtoxy_peer_latency_seconds", "summary", "Duration of connection setup phases by peer address.");
+        for (LatencyPhase p: LatencyPhase.values()) {
+            for (int i = 0; i < peers.size(); i++) {
+                LatencyHistogram h = latency.getPeer(peers.get(i), p);
+                if (h != null) {
+                    writeSummary(w, "mtoxy_peer_latency_seconds", h, peerLatencyLabels[p.ordinal()][i], values);
+                }
+            }
+        }
+    }
+
+    private void writeSummary(PrometheusWriter w, String name, LatencyHistogram h, String[] labels, long[] values) {
+        h.quantiles(QUANTILES, values);
+
+        for (int i = 0; i < QUANTILES.length; i++) {
+            w.sample(name, labels[i + 1], values[i] / 1e6);
+        }
+
+        w.sample(name + "_sum", labels[0], h.getSum() / 1e6);
+        w.sample(name + "_count", labels[0], h.getCount());
+    }
+
+    private void writeTraffic(PrometheusWriter w) {
+        w.header("mtoxy_connections_total", "counter", "Accepted client connections.");
+        for (ConnectionType t: ConnectionType.values()) {
+            w.sample("mtoxy_connections_total", typeLabels[t.ordinal()], tracker.getConnectionCount(t));
+        }
+
+        w.header("mtoxy_connections_active", "gauge", "Currently open client connections.");
+        for (ConnectionType t: ConnectionType.values()) {
+            w.sample("mtoxy_connections_active", typeLabels[t.ordinal()], tracker.getActiveConnections(t));
+        }
+
+        w.header("mtoxy_upstream_failures_total", "counter", "Client connections dropped because upstream failed.");
+        for (ConnectionType t: ConnectionType.values()) {
+            w.sample("mtoxy_upstream_failures_total", typeLabels[t.ordinal()], tracker.getConnectionFailures(t));
+        }
+
+        w.header("mtoxy_exceptions_total", "counter", "Exceptions caught in client connections.");
+        for (ConnectionType t: ConnectionType.values()) {
+            w.sample("mtoxy_exceptions_total", typeLabels[t.ordinal()], tracker.getConnectionExceptions(t));
+        }
+
+        w.header("mtoxy_paused_channels", "gauge", "Channels not read because their counterpart cannot keep up.");
+        for (ConnectionType t: ConnectionType.values()) {
+            w.sample("mtoxy_paused_channels", typeLabels[t.ordinal()], tracker.getPausedChannels(t));
+        }
+
+        w.header("mtoxy_forwarded_bytes_total", "counter", "Bytes received from and sent to clients.");
+        for (ConnectionType t: ConnectionType.values()) {
+            w.sample("mtoxy_forwarded_bytes_total", typeLabels[t.ordinal()], tracker.getBytesForwarded(t));
+        }
+
+        w.header("mtoxy_early_data_bytes", "gauge", "Bytes buffered for clients waiting for datacenter connection.");
+        w.sample("mtoxy_early_data_bytes", null, server.getEarlyDataBudget().getUsed());
+
+        w.header("mtoxy_early_data_paused_connections", "gauge", "New connections not read because early data " +
+                "budget is exhausted.");
+        w.sample("mtoxy_early_data_paused_connections", null, server.getEarlyDataBudget().getPausedConnections());
+    }
+
+    /**
+     * @param dimension What traffic is broken down by, used both as a part of metric names and in their help.
+     */
+    private void writeBreakdown(PrometheusWriter w, String dimension, TrafficCounters[] counters, String[] labels) {
+        String name = "mtoxy_" + dimension + "_connections_total";
+        w.header(name, "counter", "Client connections by " + dimension + ".");
+        for (int i = 0; i < counters.length; i++) {
+            w.sample(name, labels[i], counters[i].getConnectionCount());
+        }
+
+        name = "mtoxy_" + dimension + "_connections_active";
+        w.header(name, "gauge", "Currently open client connections by " + dimension + ".");
+        for (int i = 0; i < counters.length; i++) {
+            w.sample(name, labels[i], counters[i].getActiveConnections());
+        }
+
+        name = "mtoxy_" + dimension + "_upstream_failures_total";
+        w.header(name, "counter", "Failed connections to upstream by " + dimension + ".");
+        for (int i = 0; i < counters.length; i++) {
+            w.sample(name, labels[i], counters[i].getConnectionFailures());
+        }
+
+        name = "mtoxy_" + dimension + "_forwarded_bytes_total";
+        w.header(name, "counter", "Bytes received from and sent to clients by " + dimension + ".");
+        for (int i = 0; i < counters.length; i++) {
+            w.sample(name, labels[i], counters[i].getBytesForwarded());
+        }
+    }
+
+    private void writePeers(PrometheusWriter w) {
+        w.header("mtoxy_peer_available", "gauge", "Whether peer address is in rotation.");
+        for (int i = 0; i < peers.size(); i++) {
+            w.sample("mtoxy_peer_available", peerLabels.get(i), peers.get(i).getHealth().isAvailable() ? 1 : 0);
+        }
+
+        w.header("mtoxy_peer_connect_seconds", "gauge", "Moving average of connect time to peer address.");
+        for (int i = 0; i < peers.size(); i++) {
+            w.sample("mtoxy_peer_connect_seconds", peerLabels.get(i), peers.get(i).getHealth().getRttEwma() / 1e9);
+        }
+
+        w.header("mtoxy_peer_connect_attempts_total", "counter", "Connection attempts to peer address.");
+        for (int i = 0; i < peers.size(); i++) {
+            w.sample("mtoxy_peer_connect_attempts_total", peerLabels.get(i), peers.get(i).getHealth().getAttempts());
+        }
+
+        w.header("mtoxy_peer_connect_failures_total", "counter", "Failed connection attempts to peer address.");
+        for (int i = 0; i < peers.size(); i++) {
+            w.sample("mtoxy_peer_connect_failures_total", peerLabels.get(i), peers.get(i).getHealth().getFailures());
+        }
+    }
+
+    private void writeRuntime(PrometheusWriter w) {
+        ByteBufAllocator alloc = ByteBufAllocator.DEFAULT;
+        if (alloc instanceof ByteBufAllocatorMetricProvider) {
+            ByteBufAllocatorMetric metric = ((ByteBufAllocatorMetricProvider) alloc).metric();
+
+            w.header("mtoxy_allocator_used_bytes", "gauge", "Memory held by Netty buffer allocator.");
+            w.sample("mtoxy_allocator_used_bytes", "area=\"direct\"", metric.usedDirectMemory());
+            w.sample("mtoxy_allocator_used_bytes", "area=\"heap\"", metric.usedHeapMemory());
+
+            if (metric instanceof PooledByteBufAllocatorMetric) {
+                w.header("mtoxy_allocator_thread_caches", "gauge", "Thread-local caches of Netty buffer allocator.");
+                w.sample("mtoxy_allocator_thread_caches", null,
+                        ((PooledByteBufAllocatorMetric) metric).numThreadLocalCaches());
+            }
+        }
+
+        w.header("mtoxy_event_loop_pending_tasks", "gauge", "Tasks waiting to be run by worker event loop.");
+        for (int i = 0; i < eventLoops.size(); i++) {
+            w.sample("mtoxy_event_loop_pending_tasks", eventLoopLabels.get(i), pendingTasks.get(i));
+        }
+
+        Runtime rt = Runtime.getRuntime();
+        w.header("jvm_heap_bytes", "gauge", "JVM heap memory.");
+        w.sample("jvm_heap_bytes", "area=\"used\"", rt.totalMemory() - rt.freeMemory());
+        w.sample("jvm_heap_bytes", "area=\"committed\"", rt.totalMemory());
+        w.sample("jvm_heap_bytes", "area=\"max\"", rt.maxMemory());
+
+        w.header("jvm_buffer_pool_used_bytes", "gauge", "Memory used by JVM buffer pool.");
+        for (int i = 0; i < bufferPools.size(); i++) {
+            w.sample("jvm_buffer_pool_used_bytes", bufferPoolLabels.get(i), bufferPools.get(i).getMemoryUsed());
+        }
+
+        w.header("jvm_gc_collections_total", "counter", "Garbage collections.");
+        for (int i = 0; i < collectors.size(); i++) {
+            w.sample("jvm_gc_collections_total", collectorLabels.get(i), collectors.get(i).getCollectionCount());
+        }
+
+        w.header("jvm_gc_collection_seconds_total", "counter", "Time spent in garbage collections.");
+        for (int i = 0; i < collectors.size(); i++) {
+            w.sample("jvm_gc_collection_seconds_total", collectorLabels.get(i),
+                    collectors.get(i).getCollectionTime() / 1e3);
+        }
+
+        w.header("jvm_threads", "gauge", "Live JVM threads.");
+        w.sample("jvm_threads", null, threads.getThreadCount());
+
+        w.header("process_uptime_seconds", "gauge", "Time since the proxy was started.");
+        w.sample("process_uptime_seconds", null, ManagementFactory.getRuntimeMXBean().getUptime() / 1e3);
+    }
+}
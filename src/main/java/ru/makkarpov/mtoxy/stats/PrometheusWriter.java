@@ -0,0 +1,96 @@
+package ru.makkarpov.mtoxy.stats;
+
+import io.netty.buffer.ByteBuf;
+
+import javax.annotation.Nullable;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writer of Prometheus text exposition format directly into a buffer. Names and labels are expected to be prepared in
+ * advance, and integer values are formatted in place, so that rendering of metrics doesn't produce any garbage.
+ */
+public class PrometheusWriter {
+    private final ByteBuf buf;
+    private final byte[] digits = new byte[20];
+
+    public PrometheusWriter(ByteBuf buf) {
+        this.buf = buf;
+    }
+
+    /**
+     * Start a metric family.
+     *
+     * @param type One of 'counter', 'gauge', 'summary' or 'untyped'.
+     */
+    public void header(String name, String type, String help) {
+        ascii("# HELP ").ascii(name).ascii(" ").ascii(help).ascii("\n");
+        ascii("# TYPE ").ascii(name).ascii(" ").ascii(type).ascii("\n");
+    }
+
+    /**
+     * @param labels Labels as they should appear inside of braces, e.g. {@code type="http"}, or null if there are none.
+     */
+    public void sample(String name, @Nullable String labels, long value) {
+        start(name, labels);
+        number(value);
+        buf.writeByte('\n');
+    }
+
+    public void sample(String name, @Nullable String labels, double value) {
+        start(name, labels);
+
+        if (value == (long) value) {
+            number((long) value);
+        } else if (Double.isNaN(value)) {
+            ascii("NaN");
+        } else {
+            ascii(Double.toString(value));
+        }
+
+        buf.writeByte('\n');
+    }
+
+    private void start(String name, @Nullable String labels) {
+        ascii(name);
+
+        if (labels != null) {
+            buf.writeByte('{');
+            ascii(labels);
+            buf.writeByte('}');
+        }
+
+        buf.writeByte(' ');
+    }
+
+    private PrometheusWriter ascii(String s) {
+        buf.writeCharSequence(s, StandardCharsets.US_ASCII);
+        return this;
+    }
+
+    private void number(long value) {
+        if (value == Long.MIN_VALUE) {
+            ascii(Long.toString(value));
+            return;
+        }
+
+        if (value < 0) {
+            buf.writeByte('-');
+            value = -value;
+        }
+
+        int pos = digits.length;
+        do {
+            digits[--pos] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+
+        buf.writeBytes(digits, pos, digits.length - pos);
+    }
+
+    /**
+     * @return Label value with characters escaped as required by the format.
+     */
+    public static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
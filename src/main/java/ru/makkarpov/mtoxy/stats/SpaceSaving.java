@@ -0,0 +1,295 @@
+package ru.makkarpov.mtoxy.stats;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Space-Saving summary of the heaviest keys in a stream with fixed number of counters. Once all counters are taken, a
+ * new key replaces the lightest one and inherits its weight as an error, so any key heavier than total weight divided
+ * by capacity is guaranteed to be kept, and weight of every kept key is overestimated by no more than its error.
+ *
+ * Counters are kept in a min-heap by weight and are found by key in an open addressing table, so an update takes
+ * logarithmic time and allocates nothing. Not thread-safe.
+ *
+ * Summaries of several streams can be merged with {@link #addTo}, and the weights and errors of the result bound the
+ * weights of keys in all of the streams together.
+ */
+public class SpaceSaving {
+    private static final Comparator<Entry> HEAVIEST_FIRST = Comparator.comparingLong(Entry::getWeight).reversed();
+
+    public static class Entry {
+        private final long key;
+        private final Object label;
+        private final long weight;
+        private final long error;
+
+        private Entry(long key, Object label, long weight, long error) {
+            this.key = key;
+            this.label = label;
+            this.weight = weight;
+            this.error = error;
+        }
+
+        public long getKey() {
+            return key;
+        }
+
+        /**
+         * @return Label that was passed along with the key when its counter was taken.
+         */
+        public Object getLabel() {
+            return label;
+        }
+
+        public long getWeight() {
+            return weight;
+        }
+
+        /**
+         * @return Maximal overestimation of the weight.
+         */
+        public long getError() {
+            return error;
+        }
+    }
+
+    private final int capacity;
+    private final long[] keys;
+    private final Object[] labels;
+    private final long[] weights;
+    private final long[] errors;
+
+    /**
+     * Counter indices in min-heap order, and position of every counter in the heap.
+     */
+    private final int[] heap;
+    private final int[] heapPositions;
+
+    /**
+     * Counter index plus one for every key, or zero for empty cells.
+     */
+    private final int[] table;
+    private int size;
+
+    public SpaceSaving(int capacity) {
+        this.capacity = capacity;
+
+        keys = new long[capacity];
+        labels = new Object[capacity];
+        weights = new long[capacity];
+        errors = new long[capacity];
+        heap = new int[capacity];
+        heapPositions = new int[capacity];
+
+        // Keep the table at most half full:
+        table = new int[Integer.highestOneBit(Math.max(capacity, 1)) * 4];
+    }
+
+    private static int hash(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+
+    /**
+     * Add weight to the key.
+     *
+     * @param label Label to remember if a counter is taken for the key, e.g. something to display it with.
+     */
+    public void add(long key, Object label, long weight) {
+        if (capacity == 0) {
+            return;
+        }
+
+        int counter = find(key);
+        if (counter >= 0) {
+            weights[counter] += weight;
+            siftDown(heapPositions[counter]);
+            return;
+        }
+
+        if (size < capacity) {
+            put(key, label, weight, 0);
+            return;
+        }
+
+        // Replace the lightest key:
+        counter = heap[0];
+        remove(keys[counter]);
+        errors[counter] = weights[counter];
+        weights[counter] += weight;
+
+        keys[counter] = key;
+        labels[counter] = label;
+        insert(counter);
+
+        siftUp(heapPositions[counter]);
+        siftDown(heapPositions[counter]);
+    }
+
+    /**
+     * Take a new counter, there must be a free one.
+     */
+    private void put(long key, Object label, long weight, long error) {
+        int counter = size++;
+        keys[counter] = key;
+        labels[counter] = label;
+        weights[counter] = weight;
+        errors[counter] = error;
+        heap[counter] = counter;
+        heapPositions[counter] = counter;
+
+        insert(counter);
+        siftUp(counter);
+    }
+
+    /**
+     * @return Maximal weight of a key that is not in the summary.
+     */
+    private long missingWeight() {
+        // Keys are evicted only when all counters are taken, and none of them is lighter than the evicted ones:
+        return (size == capacity && size > 0) ? weights[heap[0]] : 0;
+    }
+
+    /**
+     * Merge all counters into another summary, which may have different capacity. A key that is missing from one of
+     * summaries could have had up to the weight of its lightest counter there, so this weight is added to both weight
+     * and error of the key. The heaviest keys of both summaries are kept then.
+     */
+    public void addTo(SpaceSaving other) {
+        long missing = missingWeight(), otherMissing = other.missingWeight();
+        List<Entry> merged = new ArrayList<>(size + other.size);
+
+        for (int i = 0; i < other.size; i++) {
+            int counter = find(other.keys[i]);
+            long weight = (counter >= 0) ? weights[counter] : missing;
+            long error = (counter >= 0) ? errors[counter] : missing;
+
+            merged.add(new Entry(other.keys[i], other.labels[i], other.weights[i] + weight, other.errors[i] + error));
+        }
+
+        for (int i = 0; i < size; i++) {
+            if (other.find(keys[i]) < 0) {
+                merged.add(new Entry(keys[i], labels[i], weights[i] + otherMissing, errors[i] + otherMissing));
+            }
+        }
+
+        merged.sort(HEAVIEST_FIRST);
+        other.clear();
+
+        for (Entry e: merged.subList(0, Math.min(other.capacity, merged.size()))) {
+            other.put(e.key, e.label, e.weight, e.error);
+        }
+    }
+
+    /**
+     * @return Up to specified number of heaviest keys, the heaviest first.
+     */
+    public List<Entry> top(int count) {
+        List<Entry> r = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            r.add(new Entry(keys[i], labels[i], weights[i], errors[i]));
+        }
+
+        r.sort(HEAVIEST_FIRST);
+        return r.subList(0, Math.min(count, r.size()));
+    }
+
+    public void clear() {
+        size = 0;
+        Arrays.fill(labels, null);
+        Arrays.fill(table, 0);
+    }
+
+    private int find(long key) {
+        int mask = table.length - 1;
+
+        for (int i = hash(key) & mask; table[i] != 0; i = (i + 1) & mask) {
+            if (keys[table[i] - 1] == key) {
+                return table[i] - 1;
+            }
+        }
+
+        return -1;
+    }
+
+    private void insert(int counter) {
+        int mask = table.length - 1;
+        int i = hash(keys[counter]) & mask;
+
+        while (table[i] != 0) {
+            i = (i + 1) & mask;
+        }
+
+        table[i] = counter + 1;
+    }
+
+    /**
+     * Remove the key from the table, moving back following keys of the same run so that lookups will still find them.
+     */
+    private void remove(long key) {
+        int mask = table.length - 1;
+        int i = hash(key) & mask;
+
+        while (keys[table[i] - 1] != key) {
+            i = (i + 1) & mask;
+        }
+
+        for (int j = (i + 1) & mask; table[j] != 0; j = (j + 1) & mask) {
+            int home = hash(keys[table[j] - 1]) & mask;
+
+            // Key can be moved to the hole only if its home cell is not between the hole and its current cell:
+            boolean between = (i <= j) ? (i < home && home <= j) : (i < home || home <= j);
+            if (!between) {
+                table[i] = table[j];
+                i = j;
+            }
+        }
+
+        table[i] = 0;
+    }
+
+    private void siftUp(int pos) {
+        while (pos > 0) {
+            int parent = (pos - 1) / 2;
+            if (weights[heap[parent]] <= weights[heap[pos]]) {
+                break;
+            }
+
+            swap(pos, parent);
+            pos = parent;
+        }
+    }
+
+    private void siftDown(int pos) {
+        while (true) {
+            int child = pos * 2 + 1;
+            if (child >= size) {
+                break;
+            }
+
+            if (child + 1 < size && weights[heap[child + 1]] < weights[heap[child]]) {
+                child++;
+            }
+
+            if (weights[heap[pos]] <= weights[heap[child]]) {
+                break;
+            }
+
+            swap(pos, child);
+            pos = child;
+        }
+    }
+
+    private void swap(int a, int b) {
+        int t = heap[a];
+        heap[a] = heap[b];
+        heap[b] = t;
+
+        heapPositions[heap[a]] = a;
+        heapPositions[heap[b]] = b;
+    }
+}
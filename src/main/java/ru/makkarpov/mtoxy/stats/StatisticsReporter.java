@@ -1,27 +1,54 @@
 package ru.makkarpov.mtoxy.stats;
 
+import io.netty.channel.EventLoop;
+import io.netty.util.concurrent.EventExecutor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import ru.makkarpov.mtoxy.MTServer;
 import ru.makkarpov.mtoxy.util.Configuration;
+import ru.makkarpov.mtoxy.util.PeerGroup;
+import ru.makkarpov.mtoxy.util.PeerHealth;
+import ru.makkarpov.mtoxy.util.PeerRecord;
 import ru.makkarpov.mtoxy.util.Utils;
 
+import javax.annotation.Nullable;
 import javax.inject.Inject;
 import javax.inject.Singleton;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
 
 @Singleton
 public class StatisticsReporter {
     private Logger LOG = LoggerFactory.getLogger(StatisticsReporter.class);
 
+    private static final double[] REPORTED_QUANTILES = { 0.5, 0.99, 0.999 };
+
+    /**
+     * Number of datacenters, peers and listen addresses with most traffic to report.
+     */
+    private static final int REPORTED_TOP = 5;
+
     private Configuration cfg;
+    private MTServer server;
     private StatisticsTracker tracker;
+    private LatencyStatistics latency;
     private Thread reportingThread;
     private long startTime;
 
+    @Nullable
+    private ListenQueueStatistics listenQueueBase;
+
     @Inject
-    public StatisticsReporter(Configuration cfg, StatisticsTracker tracker) {
+    public StatisticsReporter(Configuration cfg, MTServer server, StatisticsTracker tracker,
+                              LatencyStatistics latency) {
         this.cfg = cfg;
+        this.server = server;
         this.tracker = tracker;
+        this.latency = latency;
         this.startTime = System.currentTimeMillis();
+        this.listenQueueBase = ListenQueueStatistics.read();
     }
 
     private String formatStatistics(ConnectionType connectionType) {
@@ -29,9 +56,114 @@ public class StatisticsReporter {
                 ", alive: " + tracker.getActiveConnections(connectionType) +
                 ", upstream failures: " + tracker.getConnectionFailures(connectionType) +
                 ", exceptions: " + tracker.getConnectionExceptions(connectionType) +
+                ", paused: " + tracker.getPausedChannels(connectionType) +
                 "; traffic: " + Utils.formatSize(tracker.getBytesForwarded(connectionType));
     }
 
+    private String formatTraffic(TrafficCounters counters) {
+        return "connections: " + counters.getConnectionCount() +
+                ", alive: " + counters.getActiveConnections() +
+                ", upstream failures: " + counters.getConnectionFailures() +
+                "; traffic: " + Utils.formatSize(counters.getBytesForwarded());
+    }
+
+    /**
+     * Report counters with most traffic among ones that had any connections or failures.
+     */
+    private void reportTop(String title, List<String> names, List<TrafficCounters> counters) {
+        long[] bytes = new long[counters.size()];
+        List<Integer> order = new ArrayList<>();
+
+        for (int i = 0; i < counters.size(); i++) {
+            // Take a snapshot, so that values will not change while sorting:
+            bytes[i] = counters.get(i).getBytesForwarded();
+
+            if (counters.get(i).getConnectionCount() > 0 || counters.get(i).getConnectionFailures() > 0) {
+                order.add(i);
+            }
+        }
+
+        order.sort(Comparator.comparingLong((Integer i) -> bytes[i]).reversed());
+
+        for (int i: order.subList(0, Math.min(order.size(), REPORTED_TOP))) {
+            LOG.info("{} {}: {}", title, names.get(i), formatTraffic(counters.get(i)));
+        }
+    }
+
+    private void reportBreakdown() {
+        List<String> names = new ArrayList<>();
+        List<TrafficCounters> counters = new ArrayList<>();
+
+        for (int i = 0; i < tracker.getDatacenterCount(); i++) {
+            names.add(String.valueOf(cfg.getDatacenterNumber(i)));
+            counters.add(tracker.getDatacenter(i));
+        }
+
+        reportTop("Datacenter", names, counters);
+
+        names.clear();
+        counters.clear();
+
+        for (PeerRecord pr: tracker.getPeers()) {
+            names.add(pr.getAddress().toString());
+            counters.add(tracker.getPeer(pr));
+        }
+
+        reportTop("Peer traffic", names, counters);
+
+        names.clear();
+        counters.clear();
+
+        for (int i = 0; i < tracker.getListenerCount(); i++) {
+            names.add(cfg.getListenAddresses().get(i).toString());
+            counters.add(tracker.getListener(i));
+        }
+
+        reportTop("Listener", names, counters);
+    }
+
+    /**
+     * Report clients with most traffic and connections since the previous report, and the number of distinct ones.
+     */
+    private void reportClients() {
+        if (cfg.getClientStatisticsSize() == 0) {
+            return;
+        }
+
+        // Statistics of every event loop are collected on that loop and are reset:
+        ClientStatistics merged = new ClientStatistics(cfg.getClientStatisticsSize());
+        for (EventExecutor e: server.getWorkerGroup()) {
+            ClientStatistics clients = server.getClientStatistics((EventLoop) e);
+            e.submit(() -> clients.drainTo(merged)).awaitUninterruptibly();
+        }
+
+        LOG.info("Distinct addresses of clients connected since last report: ~{}", merged.getUniqueAddresses());
+
+        for (SpaceSaving.Entry e: merged.getBytes().top(REPORTED_TOP)) {
+            LOG.info("Client {}: traffic {}", ClientStatistics.formatClient((InetAddress) e.getLabel()),
+                    Utils.formatSize(e.getWeight()));
+        }
+
+        for (SpaceSaving.Entry e: merged.getConnections().top(REPORTED_TOP)) {
+            LOG.info("Client {}: connections {}", ClientStatistics.formatClient((InetAddress) e.getLabel()),
+                    e.getWeight());
+        }
+    }
+
+    private String formatHealth(PeerHealth health) {
+        return String.format("%s, rtt: %.1f ms, failure rate: %.1f%%, attempts: %d, failures: %d",
+                health.getState().name().toLowerCase(), health.getRttEwma() / 1e6, health.getFailureRate() * 100,
+                health.getAttempts(), health.getFailures());
+    }
+
+    private String formatLatency(LatencyHistogram h) {
+        long[] values = new long[REPORTED_QUANTILES.length];
+        h.quantiles(REPORTED_QUANTILES, values);
+
+        return String.format("p50 %.1f ms, p99 %.1f ms, p99.9 %.1f ms, samples: %d", values[0] / 1e3,
+                values[1] / 1e3, values[2] / 1e3, h.getCount());
+    }
+
     private void doRun() {
         while (true) {
             try {
@@ -48,6 +180,28 @@ public class StatisticsReporter {
             } else {
                 LOG.info("Traffic statistics: {}", formatStatistics(ConnectionType.MTPROTO));
             }
+
+            ListenQueueStatistics listenQueue = ListenQueueStatistics.read();
+            if (listenQueueBase != null && listenQueue != null) {
+                listenQueue = listenQueue.since(listenQueueBase);
+                LOG.info("Listen queue overflows: {}, drops: {}", listenQueue.getOverflows(), listenQueue.getDrops());
+            }
+
+            reportBreakdown();
+            reportClients();
+
+            for (LatencyPhase phase: LatencyPhase.values()) {
+                LatencyHistogram h = latency.getTotal(phase);
+                if (h.getCount() > 0) {
+                    LOG.info("Latency of {}: {}", phase.name().toLowerCase().replace('_', ' '), formatLatency(h));
+                }
+            }
+
+            for (PeerGroup pg: cfg.getPeers()) {
+                for (PeerRecord pr: pg.getRecords()) {
+                    LOG.info("Peer {}: {}", pr.getAddress(), formatHealth(pr.getHealth()));
+                }
+            }
         }
     }
 
@@ -1,72 +1,176 @@
 package ru.makkarpov.mtoxy.stats;
 
+import ru.makkarpov.mtoxy.util.Configuration;
+import ru.makkarpov.mtoxy.util.PeerGroup;
+import ru.makkarpov.mtoxy.util.PeerRecord;
+
+import javax.annotation.Nullable;
 import javax.inject.Inject;
 import javax.inject.Singleton;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
 
+/**
+ * Counters of connections and traffic, updated by all worker threads. Every counter is a {@link LongAdder}, which
+ * spreads concurrent updates over padded cells, so that threads don't contend for a single cache line on every
+ * forwarded message. Cells are summed only when values are read.
+ *
+ * Besides totals by connection type, traffic is broken down by datacenter, peer address and listen address. Counters
+ * for all of them are created at startup, and connections keep references to their ones, see {@link TrafficCounters}.
+ */
 @Singleton
 public class StatisticsTracker {
-    private AtomicInteger[] connectionCounts;
-    private AtomicInteger[] activeConnections;
-    private AtomicInteger[] connectionFailures;
-    private AtomicInteger[] connectionExceptions;
-    private AtomicLong[] bytesForwarded;
+    private LongAdder[] connectionCounts;
+    private LongAdder[] activeConnections;
+    private LongAdder[] connectionFailures;
+    private LongAdder[] connectionExceptions;
+    private LongAdder[] pausedChannels;
+    private LongAdder[] bytesForwarded;
 
-    @Inject
+    private TrafficCounters[] datacenters;
+    private TrafficCounters[] listeners;
+    private List<PeerRecord> peers = new ArrayList<>();
+    private Map<PeerRecord, TrafficCounters> peerCounters = new IdentityHashMap<>();
+
+    /**
+     * Create a tracker without breakdown by datacenters, peers and listen addresses.
+     */
     public StatisticsTracker() {
-        connectionCounts = new AtomicInteger[ConnectionType.values().length];
-        activeConnections = new AtomicInteger[ConnectionType.values().length];
-        connectionFailures = new AtomicInteger[ConnectionType.values().length];
-        connectionExceptions = new AtomicInteger[ConnectionType.values().length];
-        bytesForwarded = new AtomicLong[ConnectionType.values().length];
-        for (int i = 0; i < connectionCounts.length; i++) {
-            connectionCounts[i] = new AtomicInteger(0);
-            activeConnections[i] = new AtomicInteger(0);
-            connectionFailures[i] = new AtomicInteger(0);
-            connectionExceptions[i] = new AtomicInteger(0);
-            bytesForwarded[i] = new AtomicLong(0);
+        connectionCounts = createCounters();
+        activeConnections = createCounters();
+        connectionFailures = createCounters();
+        connectionExceptions = createCounters();
+        pausedChannels = createCounters();
+        bytesForwarded = createCounters();
+
+        datacenters = new TrafficCounters[0];
+        listeners = new TrafficCounters[0];
+    }
+
+    @Inject
+    public StatisticsTracker(Configuration cfg) {
+        this();
+
+        datacenters = createTrafficCounters(cfg.getDatacenterCount());
+        listeners = createTrafficCounters(cfg.getListenAddresses().size());
+
+        for (PeerGroup pg: cfg.getPeers()) {
+            for (PeerRecord pr: pg.getRecords()) {
+                peers.add(pr);
+                peerCounters.put(pr, new TrafficCounters());
+            }
         }
     }
 
+    private static TrafficCounters[] createTrafficCounters(int count) {
+        TrafficCounters[] r = new TrafficCounters[count];
+        for (int i = 0; i < r.length; i++) {
+            r[i] = new TrafficCounters();
+        }
+
+        return r;
+    }
+
+    private static LongAdder[] createCounters() {
+        LongAdder[] r = new LongAdder[ConnectionType.values().length];
+        for (int i = 0; i < r.length; i++) {
+            r[i] = new LongAdder();
+        }
+
+        return r;
+    }
+
     public void connectionStarted(ConnectionType type) {
-        connectionCounts[type.ordinal()].incrementAndGet();
-        activeConnections[type.ordinal()].incrementAndGet();
+        connectionCounts[type.ordinal()].increment();
+        activeConnections[type.ordinal()].increment();
     }
 
     public void connectionFinished(ConnectionType type) {
-        activeConnections[type.ordinal()].decrementAndGet();
+        activeConnections[type.ordinal()].decrement();
     }
 
     public void connectionFailed(ConnectionType type) {
-        connectionFailures[type.ordinal()].incrementAndGet();
+        connectionFailures[type.ordinal()].increment();
     }
 
     public void connectionException(ConnectionType type) {
-        connectionExceptions[type.ordinal()].incrementAndGet();
+        connectionExceptions[type.ordinal()].increment();
+    }
+
+    public void channelPaused(ConnectionType type) {
+        pausedChannels[type.ordinal()].increment();
+    }
+
+    public void channelResumed(ConnectionType type) {
+        pausedChannels[type.ordinal()].decrement();
     }
 
     public void bytesForwarded(ConnectionType type, long bytes) {
-        bytesForwarded[type.ordinal()].addAndGet(bytes);
+        bytesForwarded[type.ordinal()].add(bytes);
     }
 
     public int getConnectionCount(ConnectionType type) {
-        return connectionCounts[type.ordinal()].get();
+        return connectionCounts[type.ordinal()].intValue();
     }
 
     public int getActiveConnections(ConnectionType type) {
-        return activeConnections[type.ordinal()].get();
+        return activeConnections[type.ordinal()].intValue();
     }
 
     public int getConnectionFailures(ConnectionType type) {
-        return connectionFailures[type.ordinal()].get();
+        return connectionFailures[type.ordinal()].intValue();
     }
 
     public int getConnectionExceptions(ConnectionType type) {
-        return connectionExceptions[type.ordinal()].get();
+        return connectionExceptions[type.ordinal()].intValue();
+    }
+
+    /**
+     * @return Number of channels which reading is currently suspended because their counterpart cannot keep up.
+     */
+    public int getPausedChannels(ConnectionType type) {
+        return pausedChannels[type.ordinal()].intValue();
     }
 
     public long getBytesForwarded(ConnectionType type) {
-        return bytesForwarded[type.ordinal()].get();
+        return bytesForwarded[type.ordinal()].sum();
+    }
+
+    public int getDatacenterCount() {
+        return datacenters.length;
+    }
+
+    /**
+     * @return Counters of datacenter with specified index, see {@link Configuration#getDatacenterIndex}.
+     */
+    public TrafficCounters getDatacenter(int index) {
+        return datacenters[index];
+    }
+
+    public List<PeerRecord> getPeers() {
+        return Collections.unmodifiableList(peers);
+    }
+
+    /**
+     * @return Counters of specified peer address, or null if it's not configured.
+     */
+    @Nullable
+    public TrafficCounters getPeer(PeerRecord peer) {
+        return peerCounters.get(peer);
+    }
+
+    public int getListenerCount() {
+        return listeners.length;
+    }
+
+    /**
+     * @return Counters of connections accepted on listen address with specified index in configuration.
+     */
+    public TrafficCounters getListener(int index) {
+        return listeners[index];
     }
 }
@@ -0,0 +1,47 @@
+package ru.makkarpov.mtoxy.stats;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Connection and traffic counters of a single datacenter, peer address or listen address. Instances are created at
+ * startup and referenced directly by connections, so updating them doesn't involve any lookups.
+ */
+public class TrafficCounters {
+    private final LongAdder connectionCount = new LongAdder();
+    private final LongAdder activeConnections = new LongAdder();
+    private final LongAdder connectionFailures = new LongAdder();
+    private final LongAdder bytesForwarded = new LongAdder();
+
+    public void connectionStarted() {
+        connectionCount.increment();
+        activeConnections.increment();
+    }
+
+    public void connectionFinished() {
+        activeConnections.decrement();
+    }
+
+    public void connectionFailed() {
+        connectionFailures.increment();
+    }
+
+    public void bytesForwarded(long bytes) {
+        bytesForwarded.add(bytes);
+    }
+
+    public int getConnectionCount() {
+        return connectionCount.intValue();
+    }
+
+    public int getActiveConnections() {
+        return activeConnections.intValue();
+    }
+
+    public int getConnectionFailures() {
+        return connectionFailures.intValue();
+    }
+
+    public long getBytesForwarded() {
+        return bytesForwarded.sum();
+    }
+}
@@ -1,69 +1,161 @@
 package ru.makkarpov.mtoxy.util;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.util.internal.PlatformDependent;
 
 import javax.annotation.Nullable;
+import java.nio.ByteBuffer;
 import java.security.DigestException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
 public class AESCTR {
-    private AESFastEngine engine;
+    public static final int BLOCK_SIZE = BlockCipher.BLOCK_SIZE;
+
+    /**
+     * Maximum number of blocks of keystream generated at once. Bulk operations generate gamma in batches of up to
+     * this number of blocks, while byte-by-byte operations generate only a single block at a time.
+     */
+    public static final int BATCH_BLOCKS = 16;
+
+    /**
+     * Whether we can access both heap arrays and native memory with unaligned 8-byte words.
+     */
+    private static final boolean WORD_ACCESS = PlatformDependent.hasUnsafe() && PlatformDependent.isUnaligned();
+
+    private BlockCipher cipher;
     private byte[] counter, gamma;
-    private int gammaPos;
+    private int gammaPos, gammaLength;
 
     public AESCTR(byte[] key, byte[] iv) {
-        if (iv.length != 16) {
+        this(CryptoEngine.TABLE, key, iv);
+    }
+
+    public AESCTR(CryptoEngine engine, byte[] key, byte[] iv) {
+        if (iv.length != BLOCK_SIZE) {
             throw new IllegalArgumentException("Invalid IV length");
         }
 
-        engine = new AESFastEngine();
-        engine.init(true, key);
+        cipher = engine.createCipher(key);
 
-        counter = new byte[16];
-        gamma = new byte[16];
+        counter = new byte[BLOCK_SIZE];
+        gamma = new byte[BATCH_BLOCKS * BLOCK_SIZE];
 
-        System.arraycopy(iv, 0, counter, 0, 16);
-        generateGamma();
+        System.arraycopy(iv, 0, counter, 0, BLOCK_SIZE);
+        gammaPos = 0;
+        gammaLength = 0;
     }
 
-    private void generateGamma() {
-        engine.processBlock(counter, 0, gamma, 0);
+    /**
+     * Generate enough gamma to cover `required` bytes, limited by the size of batch. Must be called only when all
+     * previously generated gamma has been consumed.
+     */
+    private void generateGamma(int required) {
+        int blocks = Math.max(1, Math.min(BATCH_BLOCKS, (required + BLOCK_SIZE - 1) / BLOCK_SIZE));
+
+        for (int i = 0; i < blocks; i++) {
+            System.arraycopy(counter, 0, gamma, i * BLOCK_SIZE, BLOCK_SIZE);
+            advanceCounter(1);
+        }
+
+        cipher.encryptBlocks(gamma, 0, gamma, 0, blocks);
         gammaPos = 0;
+        gammaLength = blocks * BLOCK_SIZE;
+    }
 
-        for (int i = 15; i >= 0; i--) {
-            counter[i]++;
+    /**
+     * Add `blocks` to the 128-bit big-endian counter.
+     */
+    private void advanceCounter(long blocks) {
+        for (int i = BLOCK_SIZE - 1; i >= 0 && blocks != 0; i--) {
+            long sum = (counter[i] & 0xFF) + (blocks & 0xFF);
+            counter[i] = (byte) sum;
+            blocks = (blocks >>> 8) + (sum >>> 8);
+        }
+    }
 
-            if (counter[i] != 0) {
-                break;
-            }
+    /**
+     * @return Number of gamma bytes available right away for a request of `required` bytes, generating more if needed.
+     */
+    private int availableGamma(int required) {
+        if (gammaPos >= gammaLength) {
+            generateGamma(required);
         }
+
+        return Math.min(required, gammaLength - gammaPos);
     }
 
     public byte nextGamma() {
-        byte r = gamma[gammaPos++];
+        if (gammaPos >= gammaLength) {
+            generateGamma(1);
+        }
+
+        return gamma[gammaPos++];
+    }
 
-        if (gammaPos >= 16) {
-            generateGamma();
+    /**
+     * Skip `n` bytes of gamma, as if they were processed. Costs at most one block encryption regardless of `n`.
+     */
+    public void skipGamma(long n) {
+        if (n < 0) {
+            throw new IllegalArgumentException("Cannot skip negative number of bytes");
         }
 
-        return r;
+        int buffered = gammaLength - gammaPos;
+        if (n <= buffered) {
+            gammaPos += n;
+            return;
+        }
+
+        // Counter always points to the block right after buffered gamma, so skip whole blocks there:
+        n -= buffered;
+        advanceCounter(n / BLOCK_SIZE);
+        gammaPos = 0;
+        gammaLength = 0;
+
+        int blockOffset = (int) (n % BLOCK_SIZE);
+        if (blockOffset != 0) {
+            generateGamma(1);
+            gammaPos = blockOffset;
+        }
     }
 
-    public void skipGamma(int n) {
-        for (int i = 0; i < n; i++) {
-            nextGamma();
+    /**
+     * @return Next byte of this gamma combined with next byte of `other` gamma, if present.
+     */
+    private byte nextGamma(@Nullable AESCTR other) {
+        return other == null ? nextGamma() : (byte) (nextGamma() ^ other.nextGamma());
+    }
+
+    /**
+     * @return Number of bytes available right away in both this and `other` gamma for a request of `required` bytes.
+     */
+    private int availableGamma(int required, @Nullable AESCTR other) {
+        int n = availableGamma(required);
+        return other == null ? n : other.availableGamma(n);
+    }
+
+    private void consumeGamma(int n, @Nullable AESCTR other) {
+        gammaPos += n;
+
+        if (other != null) {
+            other.gammaPos += n;
         }
     }
 
+    /**
+     * Release underlying block cipher once the connection is closed, see {@link BlockCipher#release()}.
+     */
+    public void release() {
+        cipher.release();
+    }
+
     public void processBuffer(byte[] x) {
         processBuffer(x, 0, x.length);
     }
 
     public void processBuffer(byte[] x, int offset, int length) {
-        for (int i = offset; i < offset + length; i++) {
-            x[i] = (byte) (x[i] ^ nextGamma());
-        }
+        processArray(x, offset, length, null);
     }
 
     public void processBuffer(ByteBuf x) {
@@ -71,23 +163,181 @@ public class AESCTR {
     }
 
     public void processBuffer(ByteBuf x, int offset, int length) {
-        for (int i = offset; i < offset + length; i++) {
-            x.setByte(i, x.getByte(i) ^ nextGamma());
+        processBuffer(x, offset, length, null);
+    }
+
+    /**
+     * Process readable bytes of buffer with both this and `other` cipher. Result is the same as processing it with
+     * these ciphers one after another, but buffer memory is read and written only once.
+     */
+    public void processBuffer(ByteBuf x, AESCTR other) {
+        processBuffer(x, x.readerIndex(), x.readableBytes(), other);
+    }
+
+    /**
+     * Process remaining bytes of NIO buffer in-place. Position and limit of buffer will not be changed.
+     */
+    public void processBuffer(ByteBuffer x) {
+        processBuffer(x, null);
+    }
+
+    private void processBuffer(ByteBuf x, int offset, int length, @Nullable AESCTR other) {
+        if (length == 0) {
+            return;
+        }
+
+        if (x.hasArray()) {
+            processArray(x.array(), x.arrayOffset() + offset, length, other);
+        } else if (WORD_ACCESS && x.hasMemoryAddress() && !x.isReadOnly()) {
+            processMemory(x.memoryAddress() + offset, length, other);
+        } else if (x.nioBufferCount() > 0 && !x.isReadOnly()) {
+            // Composite buffers end up here: process each of the components directly.
+            for (ByteBuffer component: x.nioBuffers(offset, length)) {
+                processBuffer(component, other);
+            }
+        } else {
+            for (int i = offset; i < offset + length; i++) {
+                x.setByte(i, x.getByte(i) ^ nextGamma(other));
+            }
+        }
+    }
+
+    private void processBuffer(ByteBuffer x, @Nullable AESCTR other) {
+        int offset = x.position();
+        int length = x.remaining();
+
+        if (x.hasArray()) {
+            processArray(x.array(), x.arrayOffset() + offset, length, other);
+        } else if (WORD_ACCESS && x.isDirect() && !x.isReadOnly()) {
+            processMemory(PlatformDependent.directBufferAddress(x) + offset, length, other);
+        } else {
+            for (int i = offset; i < offset + length; i++) {
+                x.put(i, (byte) (x.get(i) ^ nextGamma(other)));
+            }
+        }
+    }
+
+    private void processArray(byte[] x, int offset, int length, @Nullable AESCTR other) {
+        while (length > 0) {
+            int n = availableGamma(length, other);
+
+            if (other == null) {
+                xorArray(x, offset, n, gamma, gammaPos);
+            } else {
+                xorArray(x, offset, n, gamma, gammaPos, other.gamma, other.gammaPos);
+            }
+
+            consumeGamma(n, other);
+            offset += n;
+            length -= n;
+        }
+    }
+
+    private void processMemory(long address, int length, @Nullable AESCTR other) {
+        while (length > 0) {
+            int n = availableGamma(length, other);
+
+            if (other == null) {
+                xorMemory(address, n, gamma, gammaPos);
+            } else {
+                xorMemory(address, n, gamma, gammaPos, other.gamma, other.gammaPos);
+            }
+
+            consumeGamma(n, other);
+            address += n;
+            length -= n;
         }
     }
 
-    public static AESCTR fromKeyAndSecret(byte[] key, byte[] iv, @Nullable byte[] secret) {
+    private static void xorArray(byte[] x, int offset, int n, byte[] g, int gPos) {
+        int i = 0;
+
+        if (WORD_ACCESS) {
+            for (; i + 8 <= n; i += 8) {
+                long v = PlatformDependent.getLong(x, offset + i) ^ PlatformDependent.getLong(g, gPos + i);
+                PlatformDependent.putLong(x, offset + i, v);
+            }
+        }
+
+        for (; i < n; i++) {
+            x[offset + i] ^= g[gPos + i];
+        }
+    }
+
+    private static void xorArray(byte[] x, int offset, int n, byte[] g1, int g1Pos, byte[] g2, int g2Pos) {
+        int i = 0;
+
+        if (WORD_ACCESS) {
+            for (; i + 8 <= n; i += 8) {
+                long v = PlatformDependent.getLong(x, offset + i) ^ PlatformDependent.getLong(g1, g1Pos + i) ^
+                        PlatformDependent.getLong(g2, g2Pos + i);
+                PlatformDependent.putLong(x, offset + i, v);
+            }
+        }
+
+        for (; i < n; i++) {
+            x[offset + i] ^= g1[g1Pos + i] ^ g2[g2Pos + i];
+        }
+    }
+
+    private static void xorMemory(long address, int n, byte[] g, int gPos) {
+        int i = 0;
+
+        for (; i + 8 <= n; i += 8) {
+            long v = PlatformDependent.getLong(address + i) ^ PlatformDependent.getLong(g, gPos + i);
+            PlatformDependent.putLong(address + i, v);
+        }
+
+        for (; i < n; i++) {
+            PlatformDependent.putByte(address + i, (byte) (PlatformDependent.getByte(address + i) ^ g[gPos + i]));
+        }
+    }
+
+    private static void xorMemory(long address, int n, byte[] g1, int g1Pos, byte[] g2, int g2Pos) {
+        int i = 0;
+
+        for (; i + 8 <= n; i += 8) {
+            long v = PlatformDependent.getLong(address + i) ^ PlatformDependent.getLong(g1, g1Pos + i) ^
+                    PlatformDependent.getLong(g2, g2Pos + i);
+            PlatformDependent.putLong(address + i, v);
+        }
+
+        for (; i < n; i++) {
+            byte v = (byte) (PlatformDependent.getByte(address + i) ^ g1[g1Pos + i] ^ g2[g2Pos + i]);
+            PlatformDependent.putByte(address + i, v);
+        }
+    }
+
+    public static AESCTR fromKeyAndSecret(CryptoEngine engine, byte[] key, byte[] iv, @Nullable byte[] secret) {
+        return fromKeyAndSecret(engine, key, iv, secret, null);
+    }
+
+    /**
+     * Create cipher from key and secret. Contents of `key` array will be replaced by derived key, and both `key` and
+     * `iv` arrays may be reused after the call. Keys and secrets of standard length are hashed by specialized SHA-256
+     * implementation unless engine prefers JCA, otherwise supplied `sha256` digest (or a fresh one if it is null) is
+     * used.
+     */
+    public static AESCTR fromKeyAndSecret(CryptoEngine engine, byte[] key, byte[] iv, @Nullable byte[] secret,
+                                          @Nullable MessageDigest sha256) {
         if (secret != null) {
-            try {
-                MessageDigest md = MessageDigest.getInstance("SHA-256");
-                md.update(key);
-                md.update(secret);
-                md.digest(key, 0, key.length);
-            } catch (NoSuchAlgorithmException | DigestException e) {
-                throw new RuntimeException("Failed to perform SHA-256 on key and secret");
+            if (!engine.jcaDigest && SHA256.canHashKeyAndSecret(key, secret)) {
+                SHA256.hashKeyAndSecret(key, secret, key);
+            } else {
+                try {
+                    if (sha256 == null) {
+                        sha256 = MessageDigest.getInstance("SHA-256");
+                    }
+
+                    sha256.update(key);
+                    sha256.update(secret);
+                    sha256.digest(key, 0, key.length);
+                } catch (NoSuchAlgorithmException | DigestException e) {
+                    throw new RuntimeException("Failed to perform SHA-256 on key and secret");
+                }
             }
         }
 
-        return new AESCTR(key, iv);
+        return new AESCTR(engine, key, iv);
     }
 }
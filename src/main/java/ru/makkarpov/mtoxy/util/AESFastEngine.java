@@ -24,7 +24,7 @@ package ru.makkarpov.mtoxy.util;
  * This file contains the fast version with 8Kbytes of static tables for round precomputation.
  * </p>
  */
-public class AESFastEngine {
+public class AESFastEngine implements BlockCipher {
     // The S box
     private static final byte[] S = {
             (byte)99, (byte)124, (byte)119, (byte)123, (byte)242, (byte)107, (byte)111, (byte)197,
@@ -734,8 +734,6 @@ public class AESFastEngine {
     private int         C0, C1, C2, C3;
     private boolean     forEncryption;
 
-    private static final int BLOCK_SIZE = 16;
-
     /**
      * default constructor - 128 bit block size.
      */
@@ -806,6 +804,15 @@ public class AESFastEngine {
         return BLOCK_SIZE;
     }
 
+    @Override
+    public void encryptBlocks(byte[] in, int inOff, byte[] out, int outOff, int blocks)
+    {
+        for (int i = 0; i < blocks; i++)
+        {
+            processBlock(in, inOff + i * BLOCK_SIZE, out, outOff + i * BLOCK_SIZE);
+        }
+    }
+
     public void reset()
     {
     }
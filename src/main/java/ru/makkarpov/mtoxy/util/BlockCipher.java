@@ -0,0 +1,20 @@
+package ru.makkarpov.mtoxy.util;
+
+/**
+ * An AES block cipher initialized for encryption with some key, used by AESCTR to generate keystream.
+ */
+public interface BlockCipher {
+    int BLOCK_SIZE = 16;
+
+    /**
+     * Encrypt `blocks` consecutive 16-byte blocks from `in` to `out`. Input and output regions may be the same.
+     */
+    void encryptBlocks(byte[] in, int inOff, byte[] out, int outOff, int blocks);
+
+    /**
+     * Let the cipher be reused for another key. Must be called from the thread that used it last, and the cipher must
+     * not be used after that.
+     */
+    default void release() {
+    }
+}
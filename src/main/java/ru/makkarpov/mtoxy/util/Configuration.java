@@ -1,6 +1,9 @@
 package ru.makkarpov.mtoxy.util;
 
 import com.typesafe.config.Config;
+import com.typesafe.config.ConfigValue;
+import com.typesafe.config.ConfigValueType;
+import io.netty.channel.WriteBufferWaterMark;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import ru.makkarpov.mtoxy.network.NetworkTransport;
@@ -27,15 +30,36 @@ public class Configuration {
     private Config underlying;
 
     private byte[] secretKey;
-    private List<PeerRecord> peers;
+    private List<PeerGroup> peers;
     private List<InetSocketAddress> listenAddresses;
 
     @Nullable
     private InetSocketAddress httpBackend;
+    private boolean httpSplice;
+
+    @Nullable
+    private InetSocketAddress metricsListen;
 
     private int bossThreads, workerThreads;
+    private int listenBacklog, listenShards;
     private long statisticsReportInterval;
+    private int clientStatisticsSize;
     private NetworkTransport networkTransport;
+    private CryptoEngine cryptoEngine;
+    private boolean fusedForwarding;
+    private boolean upstreamLoopAffinity;
+    private int flushAfterWrites;
+    private int upstreamPoolSize;
+    private long upstreamPoolIdleTime;
+    private long handshakeTimeout, upstreamConnectTimeout, idleTimeout;
+    private int earlyDataLimit;
+    private long earlyDataTotalLimit;
+    private WriteBufferWaterMark clientWaterMark, upstreamWaterMark;
+    private SocketOptions clientSocketOptions, datacenterSocketOptions, httpBackendSocketOptions;
+    private int peerFailureThreshold;
+    private long peerRetryInterval, peerProbeInterval, peerProbeTimeout, peerRaceDelay;
+    private int upstreamConnectRetries;
+    private long upstreamRetryBackoff;
 
     @Inject
     public Configuration(Config underlying) {
@@ -78,15 +102,59 @@ public class Configuration {
             }
         }
 
+        peerFailureThreshold = underlying.getInt("peer-failure-threshold");
+        peerRetryInterval = underlying.getDuration("peer-retry-interval", TimeUnit.MILLISECONDS);
+        peerProbeInterval = underlying.getDuration("peer-probe-interval", TimeUnit.MILLISECONDS);
+        peerProbeTimeout = underlying.getDuration("peer-probe-timeout", TimeUnit.MILLISECONDS);
+        peerRaceDelay = underlying.getDuration("peer-race-delay", TimeUnit.MILLISECONDS);
+
+        if (peerFailureThreshold <= 0) {
+            throw new IllegalArgumentException("Peer failure threshold must be positive");
+        }
+
+        if (peerProbeInterval > 0 && peerProbeTimeout <= 0) {
+            throw new IllegalArgumentException("Peer probe timeout must be positive");
+        }
+
+        upstreamConnectRetries = underlying.getInt("upstream-connect-retries");
+        upstreamRetryBackoff = underlying.getDuration("upstream-retry-backoff", TimeUnit.MILLISECONDS);
+
+        if (upstreamConnectRetries < 0) {
+            throw new IllegalArgumentException("Number of upstream connect retries cannot be negative");
+        }
+
+        if (upstreamConnectRetries > 0 && upstreamRetryBackoff <= 0) {
+            throw new IllegalArgumentException("Upstream retry backoff must be positive");
+        }
+
         peers = new ArrayList<>();
-        for (String s: underlying.getStringList("peers")) {
-            try {
-                peers.add(new PeerRecord(new URI(s)));
-            } catch (URISyntaxException e) {
-                throw new IllegalArgumentException("Cannot parse peer URI: " + s, e);
-            } catch (Exception e) {
-                throw new IllegalArgumentException("Incorrect peer URI specified: " + s, e);
+        for (ConfigValue v: underlying.getList("peers")) {
+            // Each datacenter is either a single URI or a list of URIs serving the same datacenter:
+            List<String> urls = new ArrayList<>();
+            if (v.valueType() == ConfigValueType.LIST) {
+                for (Object o: (List<?>) v.unwrapped()) {
+                    urls.add(String.valueOf(o));
+                }
+            } else {
+                urls.add(String.valueOf(v.unwrapped()));
+            }
+
+            List<PeerRecord> records = new ArrayList<>();
+            for (String s: urls) {
+                try {
+                    records.add(new PeerRecord(new URI(s), new PeerHealth(peerFailureThreshold, peerRetryInterval)));
+                } catch (URISyntaxException e) {
+                    throw new IllegalArgumentException("Cannot parse peer URI: " + s, e);
+                } catch (Exception e) {
+                    throw new IllegalArgumentException("Incorrect peer URI specified: " + s, e);
+                }
+            }
+
+            if (records.isEmpty()) {
+                throw new IllegalArgumentException("Peer address list cannot be empty");
             }
+
+            peers.add(new PeerGroup(records));
         }
         peers = Collections.unmodifiableList(peers);
 
@@ -112,9 +180,26 @@ public class Configuration {
             httpBackend = null;
         }
 
+        if (underlying.hasPath("metrics.listen")) {
+            String s = underlying.getString("metrics.listen");
+
+            try {
+                metricsListen = Utils.parseAddress(s);
+            } catch (Exception e) {
+                throw new IllegalArgumentException("Cannot parse metrics listen address: " + s, e);
+            }
+        } else {
+            metricsListen = null;
+        }
+
         bossThreads = underlying.getInt("boss-threads");
         workerThreads = underlying.getInt("worker-threads");
         statisticsReportInterval = underlying.getDuration("statistics-report-interval", TimeUnit.MILLISECONDS);
+        clientStatisticsSize = underlying.getInt("client-statistics-size");
+
+        if (clientStatisticsSize < 0) {
+            throw new IllegalArgumentException("Client statistics size cannot be negative");
+        }
 
         String s = underlying.getString("network-transport");
         try {
@@ -127,35 +212,174 @@ public class Configuration {
             throw new IllegalArgumentException("Invalid network transport specified: " + s, e);
         }
 
+        listenBacklog = underlying.getInt("listen-backlog");
+        listenShards = underlying.getInt("listen-shards");
+
+        if (listenBacklog <= 0) {
+            throw new IllegalArgumentException("Listen backlog must be positive");
+        }
+
+        if (listenShards <= 0) {
+            throw new IllegalArgumentException("Number of listen shards must be positive");
+        }
+
+        if (listenShards > 1 && networkTransport != NetworkTransport.EPOLL) {
+            throw new IllegalArgumentException("Listen shards require SO_REUSEPORT, which is supported only by epoll " +
+                    "transport");
+        }
+
+        boolean epoll = networkTransport == NetworkTransport.EPOLL;
+        clientSocketOptions = new SocketOptions(underlying.getConfig("socket.client"), true, epoll);
+        datacenterSocketOptions = new SocketOptions(underlying.getConfig("socket.datacenter"), false, epoll);
+        httpBackendSocketOptions = new SocketOptions(underlying.getConfig("socket.http-backend"), false, epoll);
+
+        // Other transports have no splice() support:
+        httpSplice = underlying.getBoolean("http-splice") && httpBackend != null &&
+                networkTransport == NetworkTransport.EPOLL;
+
+        s = underlying.getString("crypto-engine");
+        boolean cryptoAutodetected = s.equalsIgnoreCase("auto");
+        if (cryptoAutodetected) {
+            cryptoEngine = CryptoEngine.selectBest();
+        } else {
+            try {
+                cryptoEngine = CryptoEngine.valueOf(s.toUpperCase());
+            } catch (Exception e) {
+                throw new IllegalArgumentException("Invalid crypto engine specified: " + s, e);
+            }
+
+            if (!cryptoEngine.selfTest()) {
+                throw new IllegalArgumentException("Crypto engine " + s + " is not available on your system");
+            }
+        }
+
+        fusedForwarding = underlying.getBoolean("fused-forwarding");
+
+        if (underlying.getBoolean("flush-coalescing")) {
+            flushAfterWrites = underlying.getInt("flush-coalescing-max-writes");
+
+            if (flushAfterWrites < 0) {
+                throw new IllegalArgumentException("Flush coalescing max writes cannot be negative");
+            }
+        } else {
+            flushAfterWrites = 1;
+        }
+
+        upstreamLoopAffinity = underlying.getBoolean("upstream-loop-affinity");
+
+        upstreamPoolSize = underlying.getInt("upstream-pool-size");
+        upstreamPoolIdleTime = underlying.getDuration("upstream-pool-idle-time", TimeUnit.MILLISECONDS);
+
+        if (upstreamPoolSize < 0) {
+            throw new IllegalArgumentException("Upstream pool size cannot be negative");
+        }
+
+        if (upstreamPoolSize > 0 && upstreamPoolIdleTime <= 0) {
+            throw new IllegalArgumentException("Upstream pool idle time must be positive");
+        }
+
+        handshakeTimeout = underlying.getDuration("handshake-timeout", TimeUnit.MILLISECONDS);
+        upstreamConnectTimeout = underlying.getDuration("upstream-connect-timeout", TimeUnit.MILLISECONDS);
+        idleTimeout = underlying.getDuration("idle-timeout", TimeUnit.MILLISECONDS);
+
+        if (handshakeTimeout < 0 || upstreamConnectTimeout < 0 || idleTimeout < 0) {
+            throw new IllegalArgumentException("Timeouts cannot be negative");
+        }
+
+        long limit = underlying.getBytes("early-data-limit");
+        earlyDataTotalLimit = underlying.getBytes("early-data-total-limit");
+
+        if (limit <= 0 || limit > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Invalid early data limit: " + limit);
+        }
+
+        if (earlyDataTotalLimit < 0) {
+            throw new IllegalArgumentException("Early data total limit cannot be negative");
+        }
+
+        earlyDataLimit = (int) limit;
+
+        clientWaterMark = parseWaterMark("client");
+        upstreamWaterMark = parseWaterMark("upstream");
+
         LOG.info("Loaded configuration values:");
         LOG.info(" .. secret key: {}", DatatypeConverter.printHexBinary(secretKey));
         LOG.info(" .. peers:");
 
-        for (PeerRecord pr: peers) {
-            LOG.info("      {}", pr);
+        for (PeerGroup pg: peers) {
+            LOG.info("      {}", pg);
         }
 
+        LOG.info(" .. client write buffer: low {}, high {}", Utils.formatSize(clientWaterMark.low()),
+                Utils.formatSize(clientWaterMark.high()));
+        LOG.info(" .. upstream write buffer: low {}, high {}", Utils.formatSize(upstreamWaterMark.low()),
+                Utils.formatSize(upstreamWaterMark.high()));
+        LOG.info(" .. client sockets: {}", clientSocketOptions);
+        LOG.info(" .. datacenter sockets: {}", datacenterSocketOptions);
+        LOG.info(" .. HTTP backend sockets: {}", httpBackendSocketOptions);
+        LOG.info(" .. peer failure threshold: {}, retry interval: {}", peerFailureThreshold,
+                Utils.formatTime(peerRetryInterval));
+        LOG.info(" .. peer connection racing: {}", (peerRaceDelay == 0) ? "<disabled>" :
+                "after " + Utils.formatTime(peerRaceDelay));
+        LOG.info(" .. upstream connect retries: {}", (upstreamConnectRetries == 0) ? "<disabled>" :
+                upstreamConnectRetries + ", backoff from " + Utils.formatTime(upstreamRetryBackoff));
+        LOG.info(" .. peer probes: {}", (peerProbeInterval == 0) ? "<disabled>" :
+                "every " + Utils.formatTime(peerProbeInterval) + ", timeout " + Utils.formatTime(peerProbeTimeout));
+
         LOG.info(" .. listen addresses:");
 
         for (InetSocketAddress ia: listenAddresses) {
             LOG.info("      {}:{}", ia.getHostString(), ia.getPort());
         }
 
+        LOG.info(" .. listen backlog: {}, sockets per address: {}", listenBacklog, listenShards);
         LOG.info(" .. HTTP backend address: {}", Optional.ofNullable(httpBackend)
                 .map(InetSocketAddress::toString).orElse("<none, drop connections>"));
+        LOG.info(" .. HTTP splicing: {}", httpSplice ? "enabled" : "disabled");
 
         LOG.info(" .. boss threads: {}, worker threads: {}", bossThreads, workerThreads);
+        LOG.info(" .. metrics address: {}", Optional.ofNullable(metricsListen)
+                .map(InetSocketAddress::toString).orElse("<disabled>"));
         LOG.info(" .. statistics report interval: {}",
                 (statisticsReportInterval == 0) ? "<disabled>" : Utils.formatTime(statisticsReportInterval));
+        LOG.info(" .. client statistics: {}", (clientStatisticsSize == 0) ? "<disabled>" :
+                "top " + clientStatisticsSize + " clients per thread");
 
         LOG.info(" .. network transport: {}", networkTransport.name().toLowerCase());
+        LOG.info(" .. crypto engine: {}{}", cryptoEngine.name().toLowerCase(),
+                cryptoAutodetected ? " (auto-detected)" : "");
+        LOG.info(" .. fused forwarding: {}", fusedForwarding ? "enabled" : "disabled");
+        LOG.info(" .. flush coalescing: {}", (flushAfterWrites == 1) ? "<disabled>" :
+                (flushAfterWrites == 0) ? "until end of read" : "up to " + flushAfterWrites + " writes");
+        LOG.info(" .. upstream connections: {}", upstreamLoopAffinity ? "on client's thread" : "on any thread");
+        LOG.info(" .. upstream pool: {}", (upstreamPoolSize == 0) ? "<disabled>" :
+                upstreamPoolSize + " connections, idle time " + Utils.formatTime(upstreamPoolIdleTime));
+        LOG.info(" .. early data: up to {} per connection, {} total", Utils.formatSize(earlyDataLimit),
+                (earlyDataTotalLimit == 0) ? "unlimited" : Utils.formatSize(earlyDataTotalLimit));
+        LOG.info(" .. timeouts: handshake {}, upstream connect {}, idle {}", formatTimeout(handshakeTimeout),
+                formatTimeout(upstreamConnectTimeout), formatTimeout(idleTimeout));
+    }
+
+    private static String formatTimeout(long timeout) {
+        return (timeout == 0) ? "<disabled>" : Utils.formatTime(timeout);
+    }
+
+    private WriteBufferWaterMark parseWaterMark(String side) {
+        long low = underlying.getBytes(side + "-low-water-mark");
+        long high = underlying.getBytes(side + "-high-water-mark");
+
+        if (low < 0 || high > Integer.MAX_VALUE || low > high) {
+            throw new IllegalArgumentException("Invalid " + side + " write buffer water marks: " + low + ", " + high);
+        }
+
+        return new WriteBufferWaterMark((int) low, (int) high);
     }
 
     public byte[] getSecretKey() {
         return secretKey;
     }
 
-    public List<PeerRecord> getPeers() {
+    public List<PeerGroup> getPeers() {
         return peers;
     }
 
@@ -163,6 +387,39 @@ public class Configuration {
         return listenAddresses;
     }
 
+    /**
+     * @return Number of datacenters that are distinguished in statistics: a regular and a media one for every peer
+     * group.
+     */
+    public int getDatacenterCount() {
+        return peers.size() * 2;
+    }
+
+    /**
+     * @return Index of peer group that serves specified datacenter number from client handshake. Numbers beyond the
+     * configured groups wrap around, and 0 falls to the last group.
+     */
+    public int getPeerGroupIndex(int datacenterNumber) {
+        return Math.floorMod(Math.abs(datacenterNumber) - 1, peers.size());
+    }
+
+    /**
+     * @return Index of datacenter in statistics for specified datacenter number from client handshake, negative numbers
+     * stand for media datacenters.
+     */
+    public int getDatacenterIndex(int datacenterNumber) {
+        return getPeerGroupIndex(datacenterNumber) * 2 + (datacenterNumber < 0 ? 1 : 0);
+    }
+
+    /**
+     * @return Datacenter number for the index in statistics: 1 for the first peer group, -1 for its media datacenter,
+     * and so on.
+     */
+    public int getDatacenterNumber(int index) {
+        int number = index / 2 + 1;
+        return (index % 2 == 0) ? number : -number;
+    }
+
     public boolean hasHttpBackend() {
         return httpBackend != null;
     }
@@ -172,6 +429,21 @@ public class Configuration {
         return httpBackend;
     }
 
+    /**
+     * @return Whether HTTP connections should be forwarded with splice(), always false if transport does not support it.
+     */
+    public boolean isHttpSplice() {
+        return httpSplice;
+    }
+
+    /**
+     * @return Address to serve Prometheus metrics on, or null if they are disabled.
+     */
+    @Nullable
+    public InetSocketAddress getMetricsListen() {
+        return metricsListen;
+    }
+
     public int getBossThreads() {
         return bossThreads;
     }
@@ -180,11 +452,150 @@ public class Configuration {
         return workerThreads;
     }
 
+    public int getListenBacklog() {
+        return listenBacklog;
+    }
+
+    public int getListenShards() {
+        return listenShards;
+    }
+
     public long getStatisticsReportInterval() {
         return statisticsReportInterval;
     }
 
+    /**
+     * @return Number of clients with most traffic and connections tracked by every worker thread, 0 if disabled.
+     */
+    public int getClientStatisticsSize() {
+        return clientStatisticsSize;
+    }
+
     public NetworkTransport getNetworkTransport() {
         return networkTransport;
     }
+
+    public CryptoEngine getCryptoEngine() {
+        return cryptoEngine;
+    }
+
+    public boolean isFusedForwarding() {
+        return fusedForwarding;
+    }
+
+    /**
+     * @return Number of writes after which forwarded data is flushed while reading a batch: 1 flushes every write, 0
+     * flushes only when the batch is complete.
+     */
+    public int getFlushAfterWrites() {
+        return flushAfterWrites;
+    }
+
+    public boolean isUpstreamLoopAffinity() {
+        return upstreamLoopAffinity;
+    }
+
+    public int getUpstreamPoolSize() {
+        return upstreamPoolSize;
+    }
+
+    public long getUpstreamPoolIdleTime() {
+        return upstreamPoolIdleTime;
+    }
+
+    /**
+     * @return Maximum number of bytes buffered for a client while connection to datacenter is being established.
+     */
+    public int getEarlyDataLimit() {
+        return earlyDataLimit;
+    }
+
+    /**
+     * @return Maximum number of bytes buffered for all clients waiting for connection to datacenter, or 0 if not
+     * limited.
+     */
+    public long getEarlyDataTotalLimit() {
+        return earlyDataTotalLimit;
+    }
+
+    /**
+     * @return Time in milliseconds for client to send its handshake, or 0 if not limited.
+     */
+    public long getHandshakeTimeout() {
+        return handshakeTimeout;
+    }
+
+    /**
+     * @return Time in milliseconds to establish a connection to peer, or 0 if not limited.
+     */
+    public long getUpstreamConnectTimeout() {
+        return upstreamConnectTimeout;
+    }
+
+    /**
+     * @return Time in milliseconds after which forwarded connection with no traffic is closed, or 0 if not limited.
+     */
+    public long getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    public SocketOptions getClientSocketOptions() {
+        return clientSocketOptions;
+    }
+
+    public SocketOptions getDatacenterSocketOptions() {
+        return datacenterSocketOptions;
+    }
+
+    public SocketOptions getHttpBackendSocketOptions() {
+        return httpBackendSocketOptions;
+    }
+
+    /**
+     * @return Number of times connection to datacenter is started over after all its addresses have failed.
+     */
+    public int getUpstreamConnectRetries() {
+        return upstreamConnectRetries;
+    }
+
+    /**
+     * @return Backoff in milliseconds before the first retry, doubled for each next one.
+     */
+    public long getUpstreamRetryBackoff() {
+        return upstreamRetryBackoff;
+    }
+
+    public int getPeerFailureThreshold() {
+        return peerFailureThreshold;
+    }
+
+    public long getPeerRetryInterval() {
+        return peerRetryInterval;
+    }
+
+    public long getPeerProbeInterval() {
+        return peerProbeInterval;
+    }
+
+    public long getPeerProbeTimeout() {
+        return peerProbeTimeout;
+    }
+
+    public long getPeerRaceDelay() {
+        return peerRaceDelay;
+    }
+
+    /**
+     * @return Write buffer water marks of connections from clients, limiting data buffered for sending to them.
+     */
+    public WriteBufferWaterMark getClientWaterMark() {
+        return clientWaterMark;
+    }
+
+    /**
+     * @return Write buffer water marks of connections to peers and HTTP backend.
+     */
+    public WriteBufferWaterMark getUpstreamWaterMark() {
+        return upstreamWaterMark;
+    }
 }
@@ -0,0 +1,132 @@
+package ru.makkarpov.mtoxy.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.xml.bind.DatatypeConverter;
+import java.util.Arrays;
+
+public enum CryptoEngine {
+    TABLE (true, false) {
+        @Override
+        public BlockCipher createCipher(byte[] key) {
+            AESFastEngine engine = new AESFastEngine();
+            engine.init(true, key);
+            return engine;
+        }
+    },
+
+    JCA (JCABlockCipher.isSupported(), true) {
+        @Override
+        public BlockCipher createCipher(byte[] key) {
+            return new JCABlockCipher(key);
+        }
+    };
+
+    private static final Logger LOG = LoggerFactory.getLogger(CryptoEngine.class);
+
+    // AES-256 known answer test from FIPS-197, appendix C.3:
+    private static final byte[] TEST_KEY = DatatypeConverter.parseHexBinary(
+            "000102030405060708090A0B0C0D0E0F101112131415161718191A1B1C1D1E1F");
+    private static final byte[] TEST_PLAINTEXT = DatatypeConverter.parseHexBinary("00112233445566778899AABBCCDDEEFF");
+    private static final byte[] TEST_CIPHERTEXT = DatatypeConverter.parseHexBinary("8EA2B7CA516745BFEAFC49904B496089");
+
+    private static final int BENCHMARK_BLOCKS = 1024;
+    private static final long BENCHMARK_DURATION = 50_000_000L; // ns
+
+    public final boolean isAvailable;
+
+    /**
+     * Whether key derivation should use JCA SHA-256 instead of specialized implementation. JVMs that intrinsify AES
+     * usually intrinsify SHA-256 as well, and then it is faster than any pure Java code.
+     */
+    public final boolean jcaDigest;
+
+    CryptoEngine(boolean isAvailable, boolean jcaDigest) {
+        this.isAvailable = isAvailable;
+        this.jcaDigest = jcaDigest;
+    }
+
+    /**
+     * Create AES cipher initialized for encryption with specified 256-bit key.
+     */
+    public abstract BlockCipher createCipher(byte[] key);
+
+    /**
+     * @return Whether this engine is available and produces correct output on this host.
+     */
+    public boolean selfTest() {
+        if (!isAvailable) {
+            return false;
+        }
+
+        try {
+            BlockCipher cipher = createCipher(TEST_KEY.clone());
+            byte[] block = new byte[BlockCipher.BLOCK_SIZE * 2];
+
+            // Check both separate and in-place encryption:
+            System.arraycopy(TEST_PLAINTEXT, 0, block, 0, BlockCipher.BLOCK_SIZE);
+            cipher.encryptBlocks(block, 0, block, BlockCipher.BLOCK_SIZE, 1);
+            cipher.encryptBlocks(block, 0, block, 0, 1);
+
+            return Arrays.equals(Arrays.copyOfRange(block, 0, BlockCipher.BLOCK_SIZE), TEST_CIPHERTEXT) &&
+                    Arrays.equals(Arrays.copyOfRange(block, BlockCipher.BLOCK_SIZE, block.length), TEST_CIPHERTEXT);
+        } catch (Exception e) {
+            LOG.warn("Self-test of {} crypto engine failed", this, e);
+            return false;
+        }
+    }
+
+    /**
+     * @return Approximate throughput of this engine in bytes per second.
+     */
+    public double benchmark() {
+        BlockCipher cipher = createCipher(new byte[32]);
+        byte[] data = new byte[BENCHMARK_BLOCKS * BlockCipher.BLOCK_SIZE];
+
+        measureThroughput(cipher, data); // warm up JIT
+        return measureThroughput(cipher, data);
+    }
+
+    private static double measureThroughput(BlockCipher cipher, byte[] data) {
+        long start = System.nanoTime();
+        long elapsed, processed = 0;
+
+        do {
+            cipher.encryptBlocks(data, 0, data, 0, BENCHMARK_BLOCKS);
+            processed += data.length;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < BENCHMARK_DURATION);
+
+        return processed * 1e9 / elapsed;
+    }
+
+    /**
+     * Select the fastest engine among those which pass the self-test on this host.
+     */
+    public static CryptoEngine selectBest() {
+        CryptoEngine best = null;
+        double bestSpeed = 0;
+
+        for (CryptoEngine e: values()) {
+            if (!e.selfTest()) {
+                LOG.warn("Crypto engine {} is not usable on this host", e.name().toLowerCase());
+                continue;
+            }
+
+            double speed = e.benchmark();
+            LOG.debug("Crypto engine {}: {}/s", e.name().toLowerCase(), Utils.formatSize((long) speed));
+
+            if (best == null || speed > bestSpeed) {
+                best = e;
+                bestSpeed = speed;
+            }
+        }
+
+        if (best == null) {
+            throw new IllegalStateException("No crypto engine passed self-test");
+        }
+
+        return best;
+    }
+}
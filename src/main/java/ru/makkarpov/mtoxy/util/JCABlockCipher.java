@@ -0,0 +1,83 @@
+package ru.makkarpov.mtoxy.util;
+
+import io.netty.util.concurrent.FastThreadLocal;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
+
+/**
+ * AES block cipher backed by Java Cryptography Architecture. On modern JVMs this is intrinsified to use AES-NI
+ * instructions, which is much faster than table-driven implementation.
+ *
+ * Creating a JCA cipher takes a provider lookup and several kilobytes of garbage, so released ciphers are kept in a
+ * per-thread pool and initialized again with a new key.
+ */
+public class JCABlockCipher implements BlockCipher {
+    private static final String TRANSFORMATION = "AES/ECB/NoPadding";
+
+    /**
+     * Maximum number of released ciphers kept by every thread.
+     */
+    private static final int POOL_SIZE = 256;
+
+    private static final FastThreadLocal<ArrayDeque<Cipher>> POOL = new FastThreadLocal<ArrayDeque<Cipher>>() {
+        @Override
+        protected ArrayDeque<Cipher> initialValue() throws Exception {
+            return new ArrayDeque<>();
+        }
+    };
+
+    private Cipher cipher;
+
+    public JCABlockCipher(byte[] key) {
+        try {
+            Cipher c = POOL.get().pollLast();
+            if (c == null) {
+                c = Cipher.getInstance(TRANSFORMATION);
+            }
+
+            c.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"));
+            cipher = c;
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException("Failed to initialize JCA AES cipher", e);
+        }
+    }
+
+    @Override
+    public void encryptBlocks(byte[] in, int inOff, byte[] out, int outOff, int blocks) {
+        try {
+            cipher.update(in, inOff, blocks * BLOCK_SIZE, out, outOff);
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException("Failed to perform JCA AES encryption", e);
+        }
+    }
+
+    @Override
+    public void release() {
+        if (cipher == null) {
+            return;
+        }
+
+        ArrayDeque<Cipher> pool = POOL.get();
+        if (pool.size() < POOL_SIZE) {
+            pool.addLast(cipher);
+        }
+
+        // Any further use will fail instead of using somebody else's key:
+        cipher = null;
+    }
+
+    /**
+     * @return Whether JCA provides AES with 256-bit keys. Old JREs with restricted crypto policy do not.
+     */
+    public static boolean isSupported() {
+        try {
+            Cipher.getInstance(TRANSFORMATION);
+            return Cipher.getMaxAllowedKeyLength("AES") >= 256;
+        } catch (GeneralSecurityException e) {
+            return false;
+        }
+    }
+}
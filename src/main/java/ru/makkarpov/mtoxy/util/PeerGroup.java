@@ -0,0 +1,96 @@
+package ru.makkarpov.mtoxy.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A set of addresses that serve the same datacenter. New connections go to the available address with the best
+ * connect latency and failure rate.
+ */
+public class PeerGroup {
+    private static final Comparator<PeerRecord> BY_SCORE =
+            Comparator.comparingDouble(pr -> pr.getHealth().getScore());
+
+    private static final Comparator<PeerRecord> BY_RETRY_TIME =
+            (a, b) -> Long.signum(a.getHealth().getOpenUntil() - b.getHealth().getOpenUntil());
+
+    private List<PeerRecord> records;
+
+    public PeerGroup(List<PeerRecord> records) {
+        if (records.isEmpty()) {
+            throw new IllegalArgumentException("Peer group cannot be empty");
+        }
+
+        this.records = Collections.unmodifiableList(new ArrayList<>(records));
+    }
+
+    public List<PeerRecord> getRecords() {
+        return records;
+    }
+
+    /**
+     * @return Addresses ordered by preference: available ones by score, followed by the rest by time when they could
+     * be retried.
+     */
+    public List<PeerRecord> rank() {
+        if (records.size() == 1) {
+            return records;
+        }
+
+        List<PeerRecord> available = new ArrayList<>(records.size());
+        List<PeerRecord> unavailable = new ArrayList<>();
+
+        for (PeerRecord pr: records) {
+            (pr.getHealth().isAvailable() ? available : unavailable).add(pr);
+        }
+
+        available.sort(BY_SCORE);
+        unavailable.sort(BY_RETRY_TIME);
+        available.addAll(unavailable);
+
+        return available;
+    }
+
+    /**
+     * @return Best address to connect to. When all of them are out of rotation, the one to be retried first is chosen.
+     */
+    public PeerRecord select() {
+        if (records.size() == 1) {
+            return records.get(0);
+        }
+
+        PeerRecord best = null;
+        PeerRecord firstRetried = null;
+
+        for (PeerRecord pr: records) {
+            PeerHealth h = pr.getHealth();
+
+            if (h.isAvailable()) {
+                if (best == null || h.getScore() < best.getHealth().getScore()) {
+                    best = pr;
+                }
+            } else if (firstRetried == null || h.getOpenUntil() - firstRetried.getHealth().getOpenUntil() < 0) {
+                firstRetried = pr;
+            }
+        }
+
+        return (best != null) ? best : firstRetried;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+
+        for (PeerRecord pr: records) {
+            if (sb.length() > 0) {
+                sb.append(", ");
+            }
+
+            sb.append(pr);
+        }
+
+        return sb.toString();
+    }
+}
@@ -0,0 +1,157 @@
+package ru.makkarpov.mtoxy.util;
+
+/**
+ * Connection statistics and circuit breaker state of a single peer address. Updated concurrently from all event loops
+ * on each connection attempt and probe.
+ */
+public class PeerHealth {
+    public enum State {
+        /**
+         * Address is healthy and used for new connections.
+         */
+        CLOSED,
+
+        /**
+         * Address failed too many times in a row and is out of rotation until retry interval passes.
+         */
+        OPEN,
+
+        /**
+         * Retry interval has passed, a single trial connection will decide whether address is healthy again.
+         */
+        HALF_OPEN
+    }
+
+    public static final int DEFAULT_FAILURE_THRESHOLD = 3;
+    public static final long DEFAULT_RETRY_INTERVAL = 30_000; // ms
+
+    private static final double RTT_ALPHA = 0.2;
+    private static final double FAILURE_ALPHA = 0.1;
+
+    /**
+     * Penalty added to the score of address for failure rate of 100%, in nanoseconds.
+     */
+    private static final double FAILURE_PENALTY = 1e9;
+
+    private final int failureThreshold;
+    private final long retryInterval;
+
+    private volatile double rttEwma;
+    private volatile double failureRate;
+    private volatile boolean hasSamples;
+    private volatile long attempts, failures;
+    private volatile long openUntil;
+    private volatile State state = State.CLOSED;
+
+    private int consecutiveFailures;
+    private volatile boolean trialInProgress;
+
+    /**
+     * @param failureThreshold Number of consecutive failures after which address is taken out of rotation.
+     * @param retryInterval Time in milliseconds after which a failed address will be tried again.
+     */
+    public PeerHealth(int failureThreshold, long retryInterval) {
+        this.failureThreshold = failureThreshold;
+        this.retryInterval = retryInterval;
+    }
+
+    public synchronized void connectSucceeded(long rttNanos) {
+        rttEwma = hasSamples ? rttEwma + RTT_ALPHA * (rttNanos - rttEwma) : rttNanos;
+        failureRate -= FAILURE_ALPHA * failureRate;
+        hasSamples = true;
+        attempts++;
+
+        consecutiveFailures = 0;
+        trialInProgress = false;
+        state = State.CLOSED;
+    }
+
+    public synchronized void connectFailed() {
+        failureRate += FAILURE_ALPHA * (1 - failureRate);
+        attempts++;
+        failures++;
+
+        consecutiveFailures++;
+        trialInProgress = false;
+
+        if (state == State.HALF_OPEN || consecutiveFailures >= failureThreshold) {
+            state = State.OPEN;
+            openUntil = System.nanoTime() + retryInterval * 1_000_000;
+        }
+    }
+
+    /**
+     * Notify that a connection has ended without telling anything about the address, e.g. it was closed because
+     * another address has won the race or the client has gone. Lets another connection be a trial one.
+     */
+    public synchronized void connectAborted() {
+        trialInProgress = false;
+    }
+
+    /**
+     * @return Whether new connection could be made to this address right now.
+     */
+    public boolean isAvailable() {
+        switch (state) {
+            case CLOSED:
+                return true;
+
+            case OPEN:
+                return System.nanoTime() - openUntil >= 0;
+
+            default:
+                return !trialInProgress;
+        }
+    }
+
+    /**
+     * Notify that a connection will be made to this address. If circuit is open and retry interval has passed, this
+     * connection becomes a trial one and no other connections will be made until it completes.
+     */
+    public synchronized void connectStarted() {
+        if (state != State.CLOSED && System.nanoTime() - openUntil >= 0) {
+            state = State.HALF_OPEN;
+            trialInProgress = true;
+        }
+    }
+
+    /**
+     * @return Score of this address for peer selection, lower is better.
+     */
+    public double getScore() {
+        return rttEwma + failureRate * FAILURE_PENALTY;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * @return Time when circuit of this address can be retried, in terms of {@link System#nanoTime()}.
+     */
+    public long getOpenUntil() {
+        return openUntil;
+    }
+
+    /**
+     * @return Smoothed connect RTT in nanoseconds, or 0 if there were no successful connections yet.
+     */
+    public double getRttEwma() {
+        return rttEwma;
+    }
+
+    /**
+     * @return Smoothed failure rate, from 0 to 1.
+     */
+    public double getFailureRate() {
+        return failureRate;
+    }
+
+    public long getAttempts() {
+        return attempts;
+    }
+
+    public long getFailures() {
+        return failures;
+    }
+}
@@ -11,12 +11,17 @@ public class PeerRecord {
     @Nullable
     private byte[] secret;
 
+    private PeerHealth health;
+
     public PeerRecord(InetSocketAddress address, @Nullable byte[] secret) {
         this.address = address;
         this.secret = secret;
+        this.health = new PeerHealth(PeerHealth.DEFAULT_FAILURE_THRESHOLD, PeerHealth.DEFAULT_RETRY_INTERVAL);
     }
 
-    public PeerRecord(URI url) {
+    public PeerRecord(URI url, PeerHealth health) {
+        this.health = health;
+
         int port = url.getPort();
         if (port == -1) {
             port = 443;
@@ -54,6 +59,10 @@ public class PeerRecord {
         return secret;
     }
 
+    public PeerHealth getHealth() {
+        return health;
+    }
+
     @Override
     public String toString() {
         if (secret != null) {
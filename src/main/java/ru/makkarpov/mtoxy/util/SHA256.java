@@ -0,0 +1,216 @@
+package ru.makkarpov.mtoxy.util;
+
+/**
+ * SHA-256 specialized for key derivation in Obfuscated2 protocol: it hashes exactly 32 bytes of key followed by 16
+ * bytes of secret. Such message with padding fits into a single compression block, so the whole hash is computed on
+ * local variables without any allocations or provider lookups.
+ */
+public class SHA256 {
+    public static final int KEY_LENGTH = 32;
+    public static final int SECRET_LENGTH = 16;
+    public static final int DIGEST_LENGTH = 32;
+
+    private static final int[] K = {
+            0x428a2f98, 0x71374491, 0xb5c0fbcf, 0xe9b5dba5, 0x3956c25b, 0x59f111f1, 0x923f82a4, 0xab1c5ed5,
+            0xd807aa98, 0x12835b01, 0x243185be, 0x550c7dc3, 0x72be5d74, 0x80deb1fe, 0x9bdc06a7, 0xc19bf174,
+            0xe49b69c1, 0xefbe4786, 0x0fc19dc6, 0x240ca1cc, 0x2de92c6f, 0x4a7484aa, 0x5cb0a9dc, 0x76f988da,
+            0x983e5152, 0xa831c66d, 0xb00327c8, 0xbf597fc7, 0xc6e00bf3, 0xd5a79147, 0x06ca6351, 0x14292967,
+            0x27b70a85, 0x2e1b2138, 0x4d2c6dfc, 0x53380d13, 0x650a7354, 0x766a0abb, 0x81c2c92e, 0x92722c85,
+            0xa2bfe8a1, 0xa81a664b, 0xc24b8b70, 0xc76c51a3, 0xd192e819, 0xd6990624, 0xf40e3585, 0x106aa070,
+            0x19a4c116, 0x1e376c08, 0x2748774c, 0x34b0bcb5, 0x391c0cb3, 0x4ed8aa4a, 0x5b9cca4f, 0x682e6ff3,
+            0x748f82ee, 0x78a5636f, 0x84c87814, 0x8cc70208, 0x90befffa, 0xa4506ceb, 0xbef9a3f7, 0xc67178f2
+    };
+
+    /**
+     * @return Whether specified key and secret could be hashed by {@link #hashKeyAndSecret}.
+     */
+    public static boolean canHashKeyAndSecret(byte[] key, byte[] secret) {
+        return key.length == KEY_LENGTH && secret.length == SECRET_LENGTH;
+    }
+
+    /**
+     * Compute SHA-256 of concatenation of `key` and `secret` and store it to `out`, which may be the same array as
+     * `key`.
+     */
+    public static void hashKeyAndSecret(byte[] key, byte[] secret, byte[] out) {
+        if (!canHashKeyAndSecret(key, secret) || out.length < DIGEST_LENGTH) {
+            throw new IllegalArgumentException("Invalid key, secret or output length");
+        }
+
+        int w0 = bigEndianToInt(key, 0), w1 = bigEndianToInt(key, 4);
+        int w2 = bigEndianToInt(key, 8), w3 = bigEndianToInt(key, 12);
+        int w4 = bigEndianToInt(key, 16), w5 = bigEndianToInt(key, 20);
+        int w6 = bigEndianToInt(key, 24), w7 = bigEndianToInt(key, 28);
+        int w8 = bigEndianToInt(secret, 0), w9 = bigEndianToInt(secret, 4);
+        int w10 = bigEndianToInt(secret, 8), w11 = bigEndianToInt(secret, 12);
+
+        // Padding: a single '1' bit, zeros and message length in bits.
+        compress(out, w0, w1, w2, w3, w4, w5, w6, w7, w8, w9, w10, w11, 0x80000000, 0, 0,
+                (KEY_LENGTH + SECRET_LENGTH) * 8);
+    }
+
+    /**
+     * Compute SHA-256 of a message that fits into a single block with padding, i.e. up to 55 bytes. Not used for key
+     * derivation, but lets the compression be checked against standard test vectors.
+     */
+    static void hashSingleBlock(byte[] message, int length, byte[] out) {
+        if (length > 55) {
+            throw new IllegalArgumentException("Message does not fit into a single block");
+        }
+
+        byte[] block = new byte[64];
+        System.arraycopy(message, 0, block, 0, length);
+        block[length] = (byte) 0x80;
+        intToBigEndian(length * 8, block, 60);
+
+        compress(out, bigEndianToInt(block, 0), bigEndianToInt(block, 4), bigEndianToInt(block, 8),
+                bigEndianToInt(block, 12), bigEndianToInt(block, 16), bigEndianToInt(block, 20),
+                bigEndianToInt(block, 24), bigEndianToInt(block, 28), bigEndianToInt(block, 32),
+                bigEndianToInt(block, 36), bigEndianToInt(block, 40), bigEndianToInt(block, 44),
+                bigEndianToInt(block, 48), bigEndianToInt(block, 52), bigEndianToInt(block, 56),
+                bigEndianToInt(block, 60));
+    }
+
+    /**
+     * Compress a single padded block from the initial hash value and store the digest to `out`.
+     */
+    private static void compress(byte[] out, int w0, int w1, int w2, int w3, int w4, int w5, int w6, int w7, int w8,
+                                 int w9, int w10, int w11, int w12, int w13, int w14, int w15) {
+        int a = 0x6a09e667, b = 0xbb67ae85, c = 0x3c6ef372, d = 0xa54ff53a;
+        int e = 0x510e527f, f = 0x9b05688c, g = 0x1f83d9ab, h = 0x5be0cd19;
+
+        // Each iteration performs 16 rounds, renaming state variables instead of shifting them, and then expands
+        // message schedule in-place for the next 16 rounds.
+        for (int i = 0; i < 64; i += 16) {
+            h += bigSigma1(e) + ch(e, f, g) + K[i] + w0;
+            d += h;
+            h += bigSigma0(a) + maj(a, b, c);
+
+            g += bigSigma1(d) + ch(d, e, f) + K[i + 1] + w1;
+            c += g;
+            g += bigSigma0(h) + maj(h, a, b);
+
+            f += bigSigma1(c) + ch(c, d, e) + K[i + 2] + w2;
+            b += f;
+            f += bigSigma0(g) + maj(g, h, a);
+
+            e += bigSigma1(b) + ch(b, c, d) + K[i + 3] + w3;
+            a += e;
+            e += bigSigma0(f) + maj(f, g, h);
+
+            d += bigSigma1(a) + ch(a, b, c) + K[i + 4] + w4;
+            h += d;
+            d += bigSigma0(e) + maj(e, f, g);
+
+            c += bigSigma1(h) + ch(h, a, b) + K[i + 5] + w5;
+            g += c;
+            c += bigSigma0(d) + maj(d, e, f);
+
+            b += bigSigma1(g) + ch(g, h, a) + K[i + 6] + w6;
+            f += b;
+            b += bigSigma0(c) + maj(c, d, e);
+
+            a += bigSigma1(f) + ch(f, g, h) + K[i + 7] + w7;
+            e += a;
+            a += bigSigma0(b) + maj(b, c, d);
+
+            h += bigSigma1(e) + ch(e, f, g) + K[i + 8] + w8;
+            d += h;
+            h += bigSigma0(a) + maj(a, b, c);
+
+            g += bigSigma1(d) + ch(d, e, f) + K[i + 9] + w9;
+            c += g;
+            g += bigSigma0(h) + maj(h, a, b);
+
+            f += bigSigma1(c) + ch(c, d, e) + K[i + 10] + w10;
+            b += f;
+            f += bigSigma0(g) + maj(g, h, a);
+
+            e += bigSigma1(b) + ch(b, c, d) + K[i + 11] + w11;
+            a += e;
+            e += bigSigma0(f) + maj(f, g, h);
+
+            d += bigSigma1(a) + ch(a, b, c) + K[i + 12] + w12;
+            h += d;
+            d += bigSigma0(e) + maj(e, f, g);
+
+            c += bigSigma1(h) + ch(h, a, b) + K[i + 13] + w13;
+            g += c;
+            c += bigSigma0(d) + maj(d, e, f);
+
+            b += bigSigma1(g) + ch(g, h, a) + K[i + 14] + w14;
+            f += b;
+            b += bigSigma0(c) + maj(c, d, e);
+
+            a += bigSigma1(f) + ch(f, g, h) + K[i + 15] + w15;
+            e += a;
+            a += bigSigma0(b) + maj(b, c, d);
+
+            if (i == 48) {
+                break;
+            }
+
+            w0 += smallSigma1(w14) + w9 + smallSigma0(w1);
+            w1 += smallSigma1(w15) + w10 + smallSigma0(w2);
+            w2 += smallSigma1(w0) + w11 + smallSigma0(w3);
+            w3 += smallSigma1(w1) + w12 + smallSigma0(w4);
+            w4 += smallSigma1(w2) + w13 + smallSigma0(w5);
+            w5 += smallSigma1(w3) + w14 + smallSigma0(w6);
+            w6 += smallSigma1(w4) + w15 + smallSigma0(w7);
+            w7 += smallSigma1(w5) + w0 + smallSigma0(w8);
+            w8 += smallSigma1(w6) + w1 + smallSigma0(w9);
+            w9 += smallSigma1(w7) + w2 + smallSigma0(w10);
+            w10 += smallSigma1(w8) + w3 + smallSigma0(w11);
+            w11 += smallSigma1(w9) + w4 + smallSigma0(w12);
+            w12 += smallSigma1(w10) + w5 + smallSigma0(w13);
+            w13 += smallSigma1(w11) + w6 + smallSigma0(w14);
+            w14 += smallSigma1(w12) + w7 + smallSigma0(w15);
+            w15 += smallSigma1(w13) + w8 + smallSigma0(w0);
+        }
+
+        intToBigEndian(0x6a09e667 + a, out, 0);
+        intToBigEndian(0xbb67ae85 + b, out, 4);
+        intToBigEndian(0x3c6ef372 + c, out, 8);
+        intToBigEndian(0xa54ff53a + d, out, 12);
+        intToBigEndian(0x510e527f + e, out, 16);
+        intToBigEndian(0x9b05688c + f, out, 20);
+        intToBigEndian(0x1f83d9ab + g, out, 24);
+        intToBigEndian(0x5be0cd19 + h, out, 28);
+    }
+
+    private static int ch(int x, int y, int z) {
+        return (x & y) ^ (~x & z);
+    }
+
+    private static int maj(int x, int y, int z) {
+        return (x & y) ^ (x & z) ^ (y & z);
+    }
+
+    private static int bigSigma0(int x) {
+        return Integer.rotateRight(x, 2) ^ Integer.rotateRight(x, 13) ^ Integer.rotateRight(x, 22);
+    }
+
+    private static int bigSigma1(int x) {
+        return Integer.rotateRight(x, 6) ^ Integer.rotateRight(x, 11) ^ Integer.rotateRight(x, 25);
+    }
+
+    private static int smallSigma0(int x) {
+        return Integer.rotateRight(x, 7) ^ Integer.rotateRight(x, 18) ^ (x >>> 3);
+    }
+
+    private static int smallSigma1(int x) {
+        return Integer.rotateRight(x, 17) ^ Integer.rotateRight(x, 19) ^ (x >>> 10);
+    }
+
+    private static int bigEndianToInt(byte[] buf, int idx) {
+        return ((buf[idx] & 0xFF) << 24) | ((buf[idx + 1] & 0xFF) << 16) | ((buf[idx + 2] & 0xFF) << 8) |
+                (buf[idx + 3] & 0xFF);
+    }
+
+    private static void intToBigEndian(int i, byte[] buf, int idx) {
+        buf[idx] = (byte) (i >> 24);
+        buf[idx + 1] = (byte) (i >> 16);
+        buf[idx + 2] = (byte) (i >> 8);
+        buf[idx + 3] = (byte) i;
+    }
+}
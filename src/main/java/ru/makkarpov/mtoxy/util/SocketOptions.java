@@ -0,0 +1,159 @@
+package ru.makkarpov.mtoxy.util;
+
+import com.typesafe.config.Config;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.epoll.EpollChannelOption;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * TCP options for one kind of sockets: accepted from clients, connected to datacenters or to HTTP backend. Options
+ * that are specific to Linux are applied only with epoll transport and silently ignored with others.
+ */
+public class SocketOptions {
+    private final Map<ChannelOption<?>, Object> options = new LinkedHashMap<>();
+    private final Map<ChannelOption<?>, Object> listenOptions = new LinkedHashMap<>();
+    private final String description;
+
+    /**
+     * @param cfg Config block with options.
+     * @param listening Whether these options are for accepted sockets, so TCP Fast Open is enabled on listening side.
+     * @param epoll Whether epoll transport is used and Linux-specific options are supported.
+     */
+    public SocketOptions(Config cfg, boolean listening, boolean epoll) {
+        List<String> desc = new ArrayList<>();
+
+        boolean noDelay = cfg.getBoolean("tcp-nodelay");
+        options.put(ChannelOption.TCP_NODELAY, noDelay);
+        desc.add(noDelay ? "nodelay" : "no nodelay");
+
+        int sendBuffer = getSize(cfg, "send-buffer-size");
+        if (sendBuffer > 0) {
+            options.put(ChannelOption.SO_SNDBUF, sendBuffer);
+            desc.add("send buffer " + Utils.formatSize(sendBuffer));
+        }
+
+        int receiveBuffer = getSize(cfg, "receive-buffer-size");
+        if (receiveBuffer > 0) {
+            options.put(ChannelOption.SO_RCVBUF, receiveBuffer);
+            desc.add("receive buffer " + Utils.formatSize(receiveBuffer));
+        }
+
+        if (cfg.getBoolean("keep-alive")) {
+            options.put(ChannelOption.SO_KEEPALIVE, true);
+            desc.add("keep-alive");
+
+            int idle = getSeconds(cfg, "keep-alive-idle");
+            int interval = getSeconds(cfg, "keep-alive-interval");
+            int count = cfg.getInt("keep-alive-count");
+
+            if (count < 0) {
+                throw new IllegalArgumentException("Keep-alive probe count cannot be negative");
+            }
+
+            if (epoll && idle > 0) {
+                options.put(EpollChannelOption.TCP_KEEPIDLE, idle);
+                desc.add("idle " + idle + " s");
+            }
+
+            if (epoll && interval > 0) {
+                options.put(EpollChannelOption.TCP_KEEPINTVL, interval);
+                desc.add("interval " + interval + " s");
+            }
+
+            if (epoll && count > 0) {
+                options.put(EpollChannelOption.TCP_KEEPCNT, count);
+                desc.add(count + " probes");
+            }
+        }
+
+        long userTimeout = cfg.getDuration("user-timeout", TimeUnit.MILLISECONDS);
+        if (userTimeout < 0 || userTimeout > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Invalid TCP user timeout: " + userTimeout + " ms");
+        }
+
+        if (epoll && userTimeout > 0) {
+            options.put(EpollChannelOption.TCP_USER_TIMEOUT, (int) userTimeout);
+            desc.add("user timeout " + Utils.formatTime(userTimeout));
+        }
+
+        if (epoll && cfg.getBoolean("quick-ack")) {
+            options.put(EpollChannelOption.TCP_QUICKACK, true);
+            desc.add("quick ack");
+        }
+
+        if (listening) {
+            int queue = cfg.getInt("fast-open-queue");
+            if (queue < 0) {
+                throw new IllegalArgumentException("TCP Fast Open queue length cannot be negative");
+            }
+
+            if (epoll && queue > 0) {
+                listenOptions.put(EpollChannelOption.TCP_FASTOPEN, queue);
+                desc.add("fast open queue " + queue);
+            }
+        } else if (epoll && cfg.getBoolean("fast-open")) {
+            options.put(EpollChannelOption.TCP_FASTOPEN_CONNECT, true);
+            desc.add("fast open");
+        }
+
+        description = String.join(", ", desc);
+    }
+
+    private static int getSize(Config cfg, String key) {
+        long size = cfg.getBytes(key);
+        if (size < 0 || size > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Invalid socket " + key + ": " + size);
+        }
+
+        return (int) size;
+    }
+
+    private static int getSeconds(Config cfg, String key) {
+        long seconds = cfg.getDuration(key, TimeUnit.SECONDS);
+        if (seconds < 0 || seconds > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Invalid socket " + key + ": " + seconds + " s");
+        }
+
+        return (int) seconds;
+    }
+
+    /**
+     * Apply options to the sockets created by bootstrap.
+     */
+    @SuppressWarnings("unchecked")
+    public Bootstrap apply(Bootstrap bs) {
+        for (Map.Entry<ChannelOption<?>, Object> e: options.entrySet()) {
+            bs.option((ChannelOption<Object>) e.getKey(), e.getValue());
+        }
+
+        return bs;
+    }
+
+    /**
+     * Apply options to listening sockets of server bootstrap and to the sockets they accept.
+     */
+    @SuppressWarnings("unchecked")
+    public ServerBootstrap apply(ServerBootstrap sb) {
+        for (Map.Entry<ChannelOption<?>, Object> e: listenOptions.entrySet()) {
+            sb.option((ChannelOption<Object>) e.getKey(), e.getValue());
+        }
+
+        for (Map.Entry<ChannelOption<?>, Object> e: options.entrySet()) {
+            sb.childOption((ChannelOption<Object>) e.getKey(), e.getValue());
+        }
+
+        return sb;
+    }
+
+    @Override
+    public String toString() {
+        return description;
+    }
+}
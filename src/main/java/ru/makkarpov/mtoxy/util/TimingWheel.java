@@ -0,0 +1,156 @@
+package ru.makkarpov.mtoxy.util;
+
+import io.netty.channel.EventLoop;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hashed timing wheel driven by a single event loop. Timeouts are kept in buckets of doubly linked lists, so that
+ * scheduling and cancellation take constant time and don't produce any garbage other than the timeout itself, no
+ * matter how many of them are pending. Timeouts fire with precision of one tick.
+ *
+ * All methods except {@link #now()} must be called from the event loop of the wheel, and tasks are run on it.
+ */
+public class TimingWheel {
+    private static final Logger LOG = LoggerFactory.getLogger(TimingWheel.class);
+
+    public class Timeout {
+        private final Runnable task;
+        private final long deadline;
+
+        private int bucket = -1;
+        private Timeout prev, next;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Cancel the timeout if it's still pending. Does nothing otherwise.
+         */
+        public void cancel() {
+            if (bucket >= 0) {
+                unlink(this);
+            }
+        }
+
+        public boolean isPending() {
+            return bucket >= 0;
+        }
+    }
+
+    private final long tickDuration;
+    private final int mask;
+
+    /**
+     * Buckets of the wheel, followed by a list of timeouts that have expired on the current tick.
+     */
+    private final Timeout[] buckets;
+    private final int expired;
+
+    private long tick;
+    private volatile long now;
+
+    /**
+     * @param eventLoop Event loop that will drive the wheel.
+     * @param tickDuration Duration of a single tick in milliseconds.
+     * @param size Number of buckets, must be a power of two. Timeouts that are longer than a full turn of the wheel
+     *             stay in their bucket for several turns.
+     */
+    public TimingWheel(EventLoop eventLoop, long tickDuration, int size) {
+        if (tickDuration <= 0) {
+            throw new IllegalArgumentException("Tick duration must be positive");
+        }
+
+        if (size <= 0 || (size & (size - 1)) != 0) {
+            throw new IllegalArgumentException("Wheel size must be a power of two");
+        }
+
+        this.tickDuration = tickDuration;
+        this.mask = size - 1;
+        this.buckets = new Timeout[size + 1];
+        this.expired = size;
+        this.now = TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+
+        eventLoop.scheduleAtFixedRate(this::tick, tickDuration, tickDuration, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return Time of the last tick, in milliseconds of {@link System#nanoTime()}. Cheap replacement of querying the
+     * clock for code that tracks activity with precision of timeouts. Can be called from any thread.
+     */
+    public long now() {
+        return now;
+    }
+
+    /**
+     * Run a task after specified delay.
+     *
+     * @param delay Delay in milliseconds, rounded up to the tick duration.
+     */
+    public Timeout schedule(Runnable task, long delay) {
+        long ticks = Math.max(1, (delay + tickDuration - 1) / tickDuration);
+        Timeout t = new Timeout(task, tick + ticks);
+
+        link(t, (int) (t.deadline & mask));
+        return t;
+    }
+
+    private void link(Timeout t, int bucket) {
+        t.bucket = bucket;
+        t.next = buckets[bucket];
+        if (t.next != null) {
+            t.next.prev = t;
+        }
+
+        buckets[bucket] = t;
+    }
+
+    private void unlink(Timeout t) {
+        if (t.prev != null) {
+            t.prev.next = t.next;
+        } else {
+            buckets[t.bucket] = t.next;
+        }
+
+        if (t.next != null) {
+            t.next.prev = t.prev;
+        }
+
+        t.prev = null;
+        t.next = null;
+        t.bucket = -1;
+    }
+
+    private void tick() {
+        tick++;
+        now = TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+
+        // Tasks may cancel other timeouts, so collect expired ones first and only then run them:
+        Timeout t = buckets[(int) (tick & mask)];
+        while (t != null) {
+            Timeout next = t.next;
+
+            // Later timeouts in this bucket are waiting for one of next turns:
+            if (t.deadline <= tick) {
+                unlink(t);
+                link(t, expired);
+            }
+
+            t = next;
+        }
+
+        while ((t = buckets[expired]) != null) {
+            unlink(t);
+
+            try {
+                t.task.run();
+            } catch (Throwable e) {
+                LOG.warn("Timeout task has failed", e);
+            }
+        }
+    }
+}
@@ -44,20 +44,20 @@ public class Utils {
         if (time >= 1000) {
             time /= 1000;
             unit = "s";
-        }
 
-        if (time >= 60) {
-            time /= 60;
-            unit = "m";
-        }
+            if (time >= 60) {
+                time /= 60;
+                unit = "m";
 
-        if (time >= 60) {
-            time /= 60;
-            unit = "h";
+                if (time >= 60) {
+                    time /= 60;
+                    unit = "h";
 
-            if (time >= 24) {
-                time /= 24;
-                unit = "d";
+                    if (time >= 24) {
+                        time /= 24;
+                        unit = "d";
+                    }
+                }
             }
         }
 
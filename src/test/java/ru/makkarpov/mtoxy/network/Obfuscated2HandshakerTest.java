@@ -0,0 +1,80 @@
+package ru.makkarpov.mtoxy.network;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.junit.Assume;
+import org.junit.Test;
+import ru.makkarpov.mtoxy.util.CryptoEngine;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static org.junit.Assert.assertTrue;
+
+public class Obfuscated2HandshakerTest {
+    /**
+     * Handshake allocates only the state of two ciphers, which lives as long as the connection: with table engine,
+     * that is about 0.9 kB per cipher, mostly for the expanded key and a batch of keystream. Temporary keys, IVs and
+     * digests must not add anything to that.
+     */
+    private static final long MAX_TABLE_BYTES_PER_HANDSHAKE = 1920;
+
+    /**
+     * JCA ciphers are reused once connection is closed instead of being created anew, which would take 12 kB per
+     * handshake. Initializing a cipher with a new key still allocates about 1.9 kB for the expanded key inside of JCA,
+     * in addition to AES-CTR state.
+     */
+    private static final long MAX_JCA_BYTES_PER_HANDSHAKE = 4560;
+
+    private static final int WARMUP_HANDSHAKES = 20_000;
+    private static final int MEASURED_HANDSHAKES = 100_000;
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getThreadAllocatedBytes(
+                Thread.currentThread().getId());
+    }
+
+    /**
+     * @return Bytes allocated by a handshake and release of its ciphers, as if connection was closed right away.
+     */
+    private static long measureHandshake(CryptoEngine engine) {
+        byte[] secret = new byte[16];
+        ThreadLocalRandom.current().nextBytes(secret);
+
+        // Every handshake has new keys, since JCA skips key expansion if the key is the same as before:
+        byte[] handshake = new byte[64];
+        ByteBuf buf = Unpooled.wrappedBuffer(handshake);
+
+        Obfuscated2Handshaker handshaker = new Obfuscated2Handshaker(false, secret, engine);
+        for (int i = 0; i < WARMUP_HANDSHAKES; i++) {
+            ThreadLocalRandom.current().nextBytes(handshake);
+            handshaker.setupCiphers(buf);
+            handshaker.releaseCiphers();
+        }
+
+        long start = allocatedBytes();
+        for (int i = 0; i < MEASURED_HANDSHAKES; i++) {
+            ThreadLocalRandom.current().nextBytes(handshake);
+            handshaker.setupCiphers(buf);
+            handshaker.releaseCiphers();
+        }
+
+        return (allocatedBytes() - start) / MEASURED_HANDSHAKES;
+    }
+
+    @Test
+    public void tableHandshakeAllocations() {
+        long perHandshake = measureHandshake(CryptoEngine.TABLE);
+        assertTrue("Handshake allocates " + perHandshake + " bytes",
+                perHandshake <= MAX_TABLE_BYTES_PER_HANDSHAKE);
+    }
+
+    @Test
+    public void jcaHandshakeAllocations() {
+        Assume.assumeTrue(CryptoEngine.JCA.isAvailable);
+
+        long perHandshake = measureHandshake(CryptoEngine.JCA);
+        assertTrue("Handshake allocates " + perHandshake + " bytes",
+                perHandshake <= MAX_JCA_BYTES_PER_HANDSHAKE);
+    }
+}
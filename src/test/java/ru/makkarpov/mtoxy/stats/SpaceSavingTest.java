@@ -0,0 +1,89 @@
+package ru.makkarpov.mtoxy.stats;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SpaceSavingTest {
+    private static final int CAPACITY = 32;
+    private static final int KEYS = 1000;
+    private static final int UPDATES = 100_000;
+
+    /**
+     * Feed a skewed stream to the summary, so that it has to evict keys.
+     */
+    private static void feed(SpaceSaving summary, Map<Long, Long> counts, long seed) {
+        Random rnd = new Random(seed);
+
+        for (int i = 0; i < UPDATES; i++) {
+            // Keys that are heavy in one stream are light in another:
+            long key = (long) (Math.pow(rnd.nextDouble(), 4) * KEYS + seed * 100) % KEYS;
+            long weight = 1 + rnd.nextInt(100);
+
+            summary.add(key, key, weight);
+            counts.merge(key, weight, Long::sum);
+        }
+    }
+
+    private static void checkBounds(SpaceSaving summary, Map<Long, Long> counts) {
+        long total = 0;
+        for (long c: counts.values()) {
+            total += c;
+        }
+
+        Set<Long> kept = new HashSet<>();
+        for (SpaceSaving.Entry e: summary.top(CAPACITY)) {
+            long count = counts.getOrDefault(e.getKey(), 0L);
+            String message = "Key " + e.getKey() + ", count " + count + ", weight " + e.getWeight() + ", error " +
+                    e.getError();
+
+            assertTrue(message, e.getWeight() >= count);
+            assertTrue(message, e.getWeight() - e.getError() <= count);
+            kept.add(e.getKey());
+        }
+
+        // Merged counters may be overestimated twice as much as the ones of a single stream:
+        for (Map.Entry<Long, Long> e: counts.entrySet()) {
+            if (e.getValue() > 2 * total / CAPACITY) {
+                assertTrue("Key " + e.getKey() + " with count " + e.getValue() + " is lost", kept.contains(e.getKey()));
+            }
+        }
+    }
+
+    @Test
+    public void singleStream() {
+        SpaceSaving summary = new SpaceSaving(CAPACITY);
+        Map<Long, Long> counts = new HashMap<>();
+
+        feed(summary, counts, 0);
+        checkBounds(summary, counts);
+    }
+
+    @Test
+    public void mergeWithEvictions() {
+        SpaceSaving merged = new SpaceSaving(CAPACITY);
+        Map<Long, Long> counts = new HashMap<>();
+
+        // Every summary is merged into a full one, like per-thread statistics are:
+        for (long seed = 1; seed <= 3; seed++) {
+            SpaceSaving summary = new SpaceSaving(CAPACITY);
+            feed(summary, counts, seed);
+
+            summary.addTo(merged);
+            assertEquals(CAPACITY, merged.top(Integer.MAX_VALUE).size());
+        }
+
+        checkBounds(merged, counts);
+
+        List<SpaceSaving.Entry> top = merged.top(CAPACITY);
+        assertTrue("Merged counters have no errors", top.get(top.size() - 1).getError() > 0);
+    }
+}
@@ -0,0 +1,207 @@
+package ru.makkarpov.mtoxy.util;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Function;
+
+import static org.junit.Assert.assertArrayEquals;
+
+/**
+ * Checks bulk processing paths against the keystream produced by {@link AESCTR#nextGamma()} one byte at a time.
+ */
+public class AESCTRTest {
+    private static final int[] CHUNK_LENGTHS = { 1, 3, 15, 16, 17, 33, 255, 256, 257, 1001, 4099 };
+    private static final long[] SKIPS = { 0, 1, 5, 16, 17, 1000, 12345 };
+
+    private static List<CryptoEngine> engines() {
+        List<CryptoEngine> r = new ArrayList<>();
+        for (CryptoEngine e: CryptoEngine.values()) {
+            if (e.isAvailable) {
+                r.add(e);
+            }
+        }
+
+        return r;
+    }
+
+    private static AESCTR cipher(CryptoEngine engine, long seed) {
+        Random rnd = new Random(seed);
+        byte[] key = new byte[32], iv = new byte[AESCTR.BLOCK_SIZE];
+        rnd.nextBytes(key);
+        rnd.nextBytes(iv);
+
+        // Counter close to overflow of lower bytes, so that carries are checked too:
+        Arrays.fill(iv, 8, AESCTR.BLOCK_SIZE, (byte) 0xFF);
+        return new AESCTR(engine, key, iv);
+    }
+
+    /**
+     * Encrypt with per-byte gamma, skipping `skip` bytes of it before every chunk.
+     */
+    private static byte[] reference(AESCTR c, byte[] data, long skip) {
+        byte[] r = data.clone();
+        int offset = 0;
+
+        for (int i = 0; offset < r.length; i++) {
+            for (long j = 0; j < skip; j++) {
+                c.nextGamma();
+            }
+
+            int length = Math.min(CHUNK_LENGTHS[i % CHUNK_LENGTHS.length], r.length - offset);
+            for (int j = offset; j < offset + length; j++) {
+                r[j] ^= c.nextGamma();
+            }
+
+            offset += length;
+        }
+
+        return r;
+    }
+
+    /**
+     * Encrypt chunk by chunk with bulk processing of buffers of some kind, skipping `skip` bytes of gamma before every
+     * chunk.
+     */
+    private static byte[] bulk(AESCTR c, byte[] data, long skip, Function<byte[], ByteBuf> wrap) {
+        byte[] r = new byte[data.length];
+        int offset = 0;
+
+        for (int i = 0; offset < r.length; i++) {
+            c.skipGamma(skip);
+
+            int length = Math.min(CHUNK_LENGTHS[i % CHUNK_LENGTHS.length], r.length - offset);
+            ByteBuf buf = wrap.apply(Arrays.copyOfRange(data, offset, offset + length));
+
+            try {
+                c.processBuffer(buf);
+                buf.getBytes(buf.readerIndex(), r, offset, length);
+            } finally {
+                buf.release();
+            }
+
+            offset += length;
+        }
+
+        return r;
+    }
+
+    private static ByteBuf heap(byte[] data) {
+        return Unpooled.wrappedBuffer(data);
+    }
+
+    private static ByteBuf heapWithOffset(byte[] data) {
+        // Non-zero array offset and reader index:
+        ByteBuf buf = Unpooled.buffer(data.length + 10);
+        buf.writeZero(7).writeBytes(data);
+        return buf.slice(3, data.length + 4).skipBytes(4);
+    }
+
+    private static ByteBuf direct(byte[] data) {
+        ByteBuf buf = Unpooled.directBuffer(data.length + 3);
+        buf.writeZero(3).writeBytes(data).skipBytes(3);
+        return buf;
+    }
+
+    private static ByteBuf composite(byte[] data) {
+        // Both heap and direct components, split at odd positions:
+        CompositeByteBuf buf = Unpooled.compositeBuffer();
+        int a = data.length / 3, b = data.length * 2 / 3;
+
+        buf.addComponent(true, heap(Arrays.copyOfRange(data, 0, a)));
+        buf.addComponent(true, direct(Arrays.copyOfRange(data, a, b)));
+        buf.addComponent(true, heapWithOffset(Arrays.copyOfRange(data, b, data.length)));
+        return buf;
+    }
+
+    private static void checkBuffers(long skip) {
+        Random rnd = new Random(skip);
+        byte[] data = new byte[20_000];
+        rnd.nextBytes(data);
+
+        List<Function<byte[], ByteBuf>> kinds = Arrays.asList(AESCTRTest::heap, AESCTRTest::heapWithOffset,
+                AESCTRTest::direct, AESCTRTest::composite);
+
+        for (CryptoEngine engine: engines()) {
+            byte[] expected = reference(cipher(engine, skip), data, skip);
+
+            for (int k = 0; k < kinds.size(); k++) {
+                String message = engine + ", buffer kind " + k + ", skip " + skip;
+                assertArrayEquals(message, expected, bulk(cipher(engine, skip), data, skip, kinds.get(k)));
+            }
+        }
+    }
+
+    @Test
+    public void buffers() {
+        checkBuffers(0);
+    }
+
+    @Test
+    public void buffersAfterSkip() {
+        for (long skip: SKIPS) {
+            checkBuffers(skip);
+        }
+    }
+
+    @Test
+    public void arrays() {
+        Random rnd = new Random(1);
+
+        for (CryptoEngine engine: engines()) {
+            for (int length = 0; length < 600; length += 7) {
+                byte[] data = new byte[length];
+                rnd.nextBytes(data);
+
+                byte[] expected = reference(cipher(engine, length), data, 0);
+
+                // Odd offset inside of a bigger array:
+                byte[] actual = new byte[length + 5];
+                System.arraycopy(data, 0, actual, 3, length);
+                cipher(engine, length).processBuffer(actual, 3, length);
+
+                assertArrayEquals(engine + ", length " + length, expected, Arrays.copyOfRange(actual, 3, length + 3));
+            }
+        }
+    }
+
+    @Test
+    public void twoCiphers() {
+        Random rnd = new Random(2);
+        byte[] data = new byte[20_000];
+        rnd.nextBytes(data);
+
+        for (CryptoEngine engine: engines()) {
+            // Ciphers are out of phase, so their gamma buffers run out at different points:
+            AESCTR first = cipher(engine, 10), second = cipher(engine, 11);
+            second.skipGamma(5);
+
+            byte[] expected = reference(first, reference(second, data, 0), 0);
+
+            AESCTR a = cipher(engine, 10), b = cipher(engine, 11);
+            b.skipGamma(5);
+
+            byte[] actual = new byte[data.length];
+            int offset = 0;
+
+            for (int i = 0; offset < data.length; i++) {
+                int length = Math.min(CHUNK_LENGTHS[i % CHUNK_LENGTHS.length], data.length - offset);
+                ByteBuf buf = direct(Arrays.copyOfRange(data, offset, offset + length));
+
+                a.processBuffer(buf, b);
+                buf.getBytes(buf.readerIndex(), actual, offset, length);
+                buf.release();
+
+                offset += length;
+            }
+
+            assertArrayEquals(engine.toString(), expected, actual);
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package ru.makkarpov.mtoxy.util;
+
+import org.junit.Test;
+
+import javax.xml.bind.DatatypeConverter;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+
+public class SHA256Test {
+    private static byte[] jcaDigest(byte[]... parts) throws Exception {
+        MessageDigest md = MessageDigest.getInstance("SHA-256");
+        for (byte[] p: parts) {
+            md.update(p);
+        }
+
+        return md.digest();
+    }
+
+    @Test
+    public void fipsVectors() throws Exception {
+        // FIPS 180-2, appendix B.1 (the other vectors span several blocks), and an empty message:
+        String[][] vectors = {
+                { "abc", "BA7816BF8F01CFEA414140DE5DAE2223B00361A396177A9CB410FF61F20015AD" },
+                { "", "E3B0C44298FC1C149AFBF4C8996FB92427AE41E4649B934CA495991B7852B855" }
+        };
+
+        for (String[] v: vectors) {
+            byte[] message = v[0].getBytes(StandardCharsets.US_ASCII);
+            byte[] out = new byte[SHA256.DIGEST_LENGTH];
+            SHA256.hashSingleBlock(message, message.length, out);
+
+            assertArrayEquals(DatatypeConverter.parseHexBinary(v[1]), out);
+            assertArrayEquals(jcaDigest(message), out);
+        }
+    }
+
+    @Test
+    public void singleBlockLengths() throws Exception {
+        Random rnd = new Random(1);
+
+        for (int length = 0; length <= 55; length++) {
+            byte[] message = new byte[length];
+            rnd.nextBytes(message);
+
+            byte[] out = new byte[SHA256.DIGEST_LENGTH];
+            SHA256.hashSingleBlock(message, length, out);
+            assertArrayEquals("length " + length, jcaDigest(message), out);
+        }
+    }
+
+    @Test
+    public void keyAndSecret() throws Exception {
+        Random rnd = new Random(2);
+
+        for (int i = 0; i < 10_000; i++) {
+            byte[] key = new byte[SHA256.KEY_LENGTH];
+            byte[] secret = new byte[SHA256.SECRET_LENGTH];
+            rnd.nextBytes(key);
+            rnd.nextBytes(secret);
+
+            byte[] expected = jcaDigest(key, secret);
+
+            byte[] out = new byte[SHA256.DIGEST_LENGTH];
+            SHA256.hashKeyAndSecret(key, secret, out);
+            assertArrayEquals(expected, out);
+
+            // Output may replace the key:
+            SHA256.hashKeyAndSecret(key, secret, key);
+            assertArrayEquals(expected, key);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidSecretLength() {
+        SHA256.hashKeyAndSecret(new byte[SHA256.KEY_LENGTH], new byte[8], new byte[SHA256.DIGEST_LENGTH]);
+    }
+}